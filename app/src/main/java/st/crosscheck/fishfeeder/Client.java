@@ -1,23 +1,50 @@
 package st.crosscheck.fishfeeder;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.wifi.WifiManager;
 import android.util.Log;
 
 import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.net.Socket;
+import java.net.ProtocolException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import st.crosscheck.fishfeeder.data.FeedingTime;
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.data.ScheduleCache;
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
+import st.crosscheck.fishfeeder.journal.CommandJournal;
+import st.crosscheck.fishfeeder.metrics.ClientMetrics;
+import st.crosscheck.fishfeeder.net.Beacon;
+import st.crosscheck.fishfeeder.net.Deadline;
+import st.crosscheck.fishfeeder.net.FanOut;
+import st.crosscheck.fishfeeder.net.FeederConnection;
+import st.crosscheck.fishfeeder.net.FeederRegistry;
+import st.crosscheck.fishfeeder.net.NioEngine;
+import st.crosscheck.fishfeeder.protocol.DeltaDecoder;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
 
 /**
  * The network client that is responsible for finding and communicating with the
@@ -30,156 +57,399 @@ public class Client
     private static final String TAG = Client.class.getSimpleName();
     private static final int PORT = 5050;
     private static final String MULTICAST_ADDRESS = "226.1.1.1";
+    // The maximum number of commands waiting to be sent to the feeder.
+    private static final int COMMAND_QUEUE_CAPACITY = 16;
+    // The default time to wait for more refresh requests before fetching the state.
+    private static final long DEFAULT_REFRESH_DEBOUNCE_MS = 200;
+    // The time allowed for a command that is not given a deadline.
+    private static final long DEFAULT_COMMAND_TIMEOUT_MS = 10000;
+    // The most attempts made at a command that is safe to repeat.
+    private static final int MAX_ATTEMPTS = 3;
+    // The shortest and longest back-off before another attempt.
+    private static final long MIN_BACKOFF_MS = 50;
+    private static final long MAX_BACKOFF_MS = 2000;
+    // Where the address of the last feeder found is kept between runs.
+    private static final String PREFERENCES_NAME = "feeder";
+    private static final String PREFERENCE_HOST = "host";
+    private static final String PREFERENCE_PORT = "port";
+    // The file that holds commands waiting to be sent while the feeder can't be reached.
+    private static final String JOURNAL_FILE = "commands.journal";
+    // How long to collect journal writes before forcing them to disk.
+    private static final long JOURNAL_SYNC_DELAY_MS = 250;
+    // An edit kept in the journal for longer than this has likely been overtaken, and is dropped.
+    private static final long JOURNAL_MAX_AGE_MS = 24 * 60 * 60 * 1000L;
     private final Context context;
-    private String host;
-    private Integer port;
-    private boolean ready = false;
-    private Socket socket;
-    private InputStream in;
-    private OutputStream out;
+    // The address of the feeder, null until one is known.
+    private volatile InetSocketAddress endpoint;
+    private volatile MulticastSocket multiSocket;
+    // When the client was created, and when the state was first read, for measuring startup time.
+    private final long startTime = System.nanoTime();
+    private volatile long firstStateTime;
     private WifiManager.MulticastLock lock;
-    private final List<FeedingTime> feedingTimes = new ArrayList<>();
-    private final List<UpdateListener> updateListeners = new ArrayList<>();
+    // If set, commands are sent through this engine instead of the client's own socket.
+    private NioEngine nioEngine;
+    // The engine used to send commands to many feeders at once, if no engine has been set.
+    private NioEngine fanOutEngine;
+    // Every feeder that has announced itself while the client was running.
+    private final FeederRegistry registry = new FeederRegistry();
+    private volatile boolean closed = false;
+    // Set if the last attempt to read the state from the current feeder failed.
+    private volatile boolean endpointFailed = false;
+    // The state last read from the feeder, only used while holding the lock.
+    private Schedule lastRead = Schedule.EMPTY;
+    // The last complete state read from the feeder.
+    private volatile Schedule confirmed = Schedule.EMPTY;
+    // Edits that are shown in the schedule but have not yet been confirmed by the feeder, in order.
+    private final List<ScheduleEdit> pendingEdits = new ArrayList<>();
+    // The edit currently being sent to the feeder, if any.
+    private ScheduleEdit editInFlight;
+    // The confirmed state with the pending edits applied, published for other threads.
+    private final AtomicReference<Schedule> schedule = new AtomicReference<>(Schedule.EMPTY);
+    private final List<EditListener> editListeners = new CopyOnWriteArrayList<>();
+    // Commands that could not be sent, null if the journal could not be opened.
+    private CommandJournal journal;
+    // The pending edits that are kept in the journal, only used while holding the pendingEdits lock.
+    private final Map<ScheduleEdit, CommandJournal.Entry> journaledEdits = new HashMap<>();
+    private boolean journalSyncScheduled;
+    private boolean replayScheduled;
+    // The last known schedule of each feeder, shown until the feeder has been reached.
+    private final ScheduleCache scheduleCache;
+    // The schedule last written to the cache, only used on the command lane.
+    private Schedule cachedSchedule;
+    // True while the schedule shown comes from the cache rather than from the feeder.
+    private volatile boolean stale;
+    private final StateDecoder decoder = new StateDecoder();
+    private final DeltaDecoder deltaDecoder = new DeltaDecoder();
+    // Set if the current feeder has announced that it can send only the changed slots.
+    private volatile boolean syncSupported;
+    // The epoch and version of the state of the current feeder that lastRead is at least as new
+    // as, 0 if unknown. Versions are only comparable within an epoch, which the feeder picks
+    // anew each time it starts. Only used while holding the lock.
+    private int stateEpoch;
+    private int stateVersion;
+    // The last epoch and version of the state read from the current feeder, and the last ones
+    // it announced in a beacon, 0 if unknown.
+    private volatile int syncedEpoch;
+    private volatile int syncedVersion;
+    private volatile int announcedEpoch;
+    private volatile int announcedVersion;
+    // If set, the state is refreshed whenever the feeder announces a new version.
+    private volatile boolean subscribed;
+    private final ClientMetrics metrics = new ClientMetrics();
+    // The connection to the feeder, unless commands are sent through an engine.
+    private final FeederConnection connection = new FeederConnection(metrics);
+    // The deadline of the command running on each thread, if it was given one.
+    private final ThreadLocal<Deadline> commandDeadline = new ThreadLocal<>();
+    private volatile long commandTimeoutMillis = DEFAULT_COMMAND_TIMEOUT_MS;
+    // The smoothed round trip time of a command, in microseconds, 0 until one has completed.
+    private volatile long smoothedRttMicros;
+    private final Random random = new Random();
+    // The futures of asynchronous commands that have not started yet.
+    private final List<CommandFuture<?>> queuedFutures = new ArrayList<>();
+
+    /**
+     * A command that produces a result, run on the command lane.
+     */
+    private interface Command<T>
+    {
+        T run() throws IOException;
+    }
+    private final List<UpdateListener> updateListeners = new CopyOnWriteArrayList<>();
+    private final CommandScheduler scheduler = new CommandScheduler(COMMAND_QUEUE_CAPACITY);
+    private final RefreshCoalescer refreshes = new RefreshCoalescer(scheduler, this::runRefresh, DEFAULT_REFRESH_DEBOUNCE_MS);
 
     public Client(Context context, UpdateListener listener)
     {
         this.context = context;
+        this.scheduleCache = new ScheduleCache(context.getCacheDir());
         if(listener != null)
         {
             addUpdateListener(listener);
         }
-        new Thread(() -> {
-            listenForBeacon();
-            updateState();
-        }).start();
+        // Start with the feeder found last time, if any, while listening for its beacon.
+        endpoint = loadEndpoint();
+        if(endpoint != null)
+        {
+            Log.d(TAG, "Using cached feeder address " + endpoint);
+            loadCachedSchedule(endpoint);
+            scheduler.submit(this::refreshState);
+        }
+        openJournal();
+        Thread discovery = new Thread(this::discover, "FeederDiscovery");
+        discovery.setDaemon(true);
+        discovery.start();
     }
 
-    public List<FeedingTime> getFeedingTimes()
+    /**
+     * Show the schedule last read from a feeder until its live state has been read.
+     */
+    private void loadCachedSchedule(InetSocketAddress feeder)
     {
-        return this.feedingTimes;
+        Schedule cached = scheduleCache.load(feeder);
+        if(cached == null)
+        {
+            return;
+        }
+        Log.d(TAG, "Showing cached schedule for " + feeder);
+        cachedSchedule = cached;
+        confirmed = cached;
+        stale = true;
+        publish();
     }
 
-    public synchronized void doManual(float seconds)
+    /**
+     * Write the state just read to the cache, unless it is already there.
+     */
+    private void storeCachedSchedule()
     {
-        if(seconds>25.5 || seconds < 0.1)
+        InetSocketAddress feeder = endpoint;
+        if(feeder == null || lastRead.isSameAs(cachedSchedule))
         {
-            throw new IllegalArgumentException("Seconds must be between 0.1 and 25.5, inclusive.");
+            return;
+        }
+        try
+        {
+            scheduleCache.store(feeder, lastRead);
+            cachedSchedule = lastRead;
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not cache the schedule.", e);
         }
-        Log.d(TAG,"manual");
-        sendMessage(new byte[]{'m',(byte)Math.round(seconds*10)});
     }
 
-    public synchronized void updateState()
+    /**
+     * Open the journal of commands not yet sent, drop those that should no longer be sent, and
+     * show the edits for the current feeder as pending.
+     */
+    private void openJournal()
     {
-        Log.d(TAG,"update");
-        sendMessageAndUpdateState(new byte[]{'u'});
+        try
+        {
+            journal = new CommandJournal(new File(context.getFilesDir(), JOURNAL_FILE));
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG, "Could not open the command journal.", e);
+            return;
+        }
+        for(CommandJournal.Entry entry:journal.getPending())
+        {
+            if(isObsolete(entry))
+            {
+                Log.d(TAG, "Dropping journal entry " + entry.getSequence());
+                acknowledgeJournalEntry(entry);
+            }
+        }
+        syncJournal();
+        if(!journal.isEmpty())
+        {
+            Log.d(TAG, journal.getPending().size() + " commands waiting to be sent.");
+            showJournaledEdits(endpoint);
+        }
     }
 
-    public synchronized void deleteFeedingTime(FeedingTime ft)
+    /**
+     * Check if a journal entry should not be sent to any feeder: it is not an edit, it does not
+     * say which feeder it is for, or it is so old that it has likely been overtaken.
+     */
+    private static boolean isObsolete(CommandJournal.Entry entry)
     {
-        Log.d(TAG,"delete");
-        sendMessageAndUpdateState(new byte[]{'d',(byte)ft.slot});
+        return entry.getFeeder() == null
+                || System.currentTimeMillis() - entry.getTime() > JOURNAL_MAX_AGE_MS
+                || ScheduleEdit.fromFrame(entry.getFrame()) == null;
     }
 
-    public synchronized void createFeedingTime(FeedingTime ft)
+    /**
+     * Show the edits in the journal that are meant for a feeder as pending, in place of those
+     * meant for any other feeder.
+     */
+    private void showJournaledEdits(InetSocketAddress feeder)
     {
-        Log.d(TAG,"create " + ft);
-        sendMessageAndUpdateState(new byte[]{'c',(byte)ft.slot,(byte)ft.hour,(byte)ft.minute,ft.getDeciSeconds()});
+        if(journal == null)
+        {
+            return;
+        }
+        synchronized (pendingEdits)
+        {
+            for(ScheduleEdit edit:journaledEdits.keySet())
+            {
+                pendingEdits.remove(edit);
+            }
+            journaledEdits.clear();
+            int index = 0;
+            for(CommandJournal.Entry entry:journal.getPending())
+            {
+                if(feeder != null && feeder.equals(entry.getFeeder()) && !isObsolete(entry))
+                {
+                    ScheduleEdit edit = ScheduleEdit.fromFrame(entry.getFrame());
+                    // The journaled edits were made before any edit still waiting to be sent
+                    pendingEdits.add(index++, edit);
+                    journaledEdits.put(edit, entry);
+                }
+            }
+        }
+        publish();
     }
 
-    private void sendMessage(byte [] bytes)
+    /**
+     * Keep an edit that could not be sent, to send it once the current feeder can be reached.
+     * @return the journal entry, or null if the edit could not be kept.
+     */
+    private synchronized CommandJournal.Entry journalCommand(byte[] frame)
     {
+        InetSocketAddress feeder = endpoint;
+        if(journal == null || feeder == null)
+        {
+            return null;
+        }
         try
         {
-            setUpConnection();
-            transmit(bytes);
-            closeConnection();
+            CommandJournal.Entry entry = journal.append(feeder, frame);
+            // Let the commands that fail together share one sync
+            if(!journalSyncScheduled)
+            {
+                journalSyncScheduled = scheduler.schedule(this::syncJournal, JOURNAL_SYNC_DELAY_MS);
+            }
+            return entry;
         }
         catch (IOException e)
         {
-            e.printStackTrace();
+            Log.e(TAG, "Could not write to the command journal.", e);
+            return null;
         }
-        finally
+    }
+
+    private synchronized void syncJournal()
+    {
+        journalSyncScheduled = false;
+        if(journal != null)
+        {
+            try
+            {
+                journal.sync();
+            }
+            catch (IOException e)
+            {
+                Log.e(TAG, "Could not sync the command journal.", e);
+            }
+        }
+    }
+
+    /**
+     * Send the edits in the journal that are meant for the current feeder, in the order they
+     * were made. Edits for other feeders are kept until one of them is used again.
+     * An edit that the state of the feeder already reflects is not sent again, so replaying
+     * a command whose acknowledgement was lost does no harm.
+     */
+    private synchronized void replayJournal()
+    {
+        replayScheduled = false;
+        if(journal == null)
         {
-            if(socket != null)
+            return;
+        }
+        InetSocketAddress feeder = endpoint;
+        for(CommandJournal.Entry entry:journal.getPending())
+        {
+            if(isObsolete(entry))
             {
-                try
-                {
-                    socket.close();
-                }
-                catch (IOException e)
+                Log.d(TAG, "Dropping journal entry " + entry.getSequence());
+                acknowledgeJournalEntry(entry);
+                settleJournaledEdit(entry, false);
+                continue;
+            }
+            if(!entry.getFeeder().equals(feeder))
+            {
+                continue;
+            }
+            byte[] frame = entry.getFrame();
+            ScheduleEdit edit = ScheduleEdit.fromFrame(frame);
+            boolean accepted;
+            if(edit.isReflectedIn(lastRead))
+            {
+                accepted = true;
+            }
+            else
+            {
+                if(!sendMessageAndUpdateState(frame))
                 {
-                    e.printStackTrace();
+                    break;
                 }
-                socket = null;
+                accepted = edit.isReflectedIn(lastRead);
             }
+            Log.d(TAG, "Replayed journal entry " + entry.getSequence());
+            acknowledgeJournalEntry(entry);
+            settleJournaledEdit(entry, accepted);
         }
+        syncJournal();
     }
 
-    private void sendMessageAndUpdateState(byte[] bytes)
+    private void acknowledgeJournalEntry(CommandJournal.Entry entry)
     {
-        feedingTimes.clear();
         try
         {
-            setUpConnection();
-            transmit(bytes);
-            readState();
-            closeConnection();
+            journal.acknowledge(entry);
         }
         catch (IOException e)
         {
-            e.printStackTrace();
+            Log.e(TAG, "Could not write to the command journal.", e);
         }
-        finally
+    }
+
+    /**
+     * Confirm or roll back the pending edit that belongs to a journal entry.
+     */
+    private void settleJournaledEdit(CommandJournal.Entry entry, boolean accepted)
+    {
+        ScheduleEdit edit = null;
+        synchronized (pendingEdits)
         {
-            if(socket != null)
+            for(Map.Entry<ScheduleEdit, CommandJournal.Entry> e:journaledEdits.entrySet())
             {
-                try
-                {
-                    socket.close();
-                }
-                catch (IOException e)
+                if(e.getValue() == entry)
                 {
-                    e.printStackTrace();
+                    edit = e.getKey();
                 }
-                socket = null;
             }
+            if(edit == null)
+            {
+                return;
+            }
+            journaledEdits.remove(edit);
         }
-    }
-
-    private void readState() throws IOException
-    {
-        int slot = 0;
-        while(socket.isConnected())
+        if(accepted)
         {
-            int hour = in.read();
-            if(hour < 0)
-                break;
-            int minute = in.read();
-            if(minute < 0)
-                break;
-            int deciSecond = in.read();
-            if (deciSecond < 0)
-                break;
-            FeedingTime ft = new FeedingTime(slot, hour,minute,(float)(deciSecond/10.0),true);
-            if(ft.hour < 24 && ft.minute < 60)
+            synchronized (pendingEdits)
             {
-                feedingTimes.add(ft);
+                pendingEdits.remove(edit);
             }
-            slot++;
-            Log.d(TAG, "" + ft);
+            publish();
+            fireUpdate();
+        }
+        else
+        {
+            rollBack(edit);
         }
-        // Sort the feeding times
-        Collections.sort(feedingTimes);
+    }
 
-        // Notify listeners that we have an update list
-        for (UpdateListener ul:updateListeners)
+    /**
+     * Send the journal once the feeder has answered, if there is anything in it.
+     */
+    private void scheduleReplay()
+    {
+        if(journal != null && !journal.isEmpty() && !replayScheduled)
         {
-            ul.notifyUpdate();
+            replayScheduled = scheduler.submit(this::replayJournal);
         }
     }
 
-    private void listenForBeacon()
+    /**
+     * Listen for the beacons of all feeders on the network until the client is closed.
+     * The first beacon from the feeder in use confirms its address. If no feeder is in use,
+     * or the one in use can't be reached, the client switches to the feeder that announced itself.
+     */
+    private void discover()
     {
         WifiManager wifi = (WifiManager) context.getApplicationContext().getSystemService(Context.WIFI_SERVICE);
         if (wifi != null)
@@ -191,26 +461,61 @@ public class Client
         // create a broadcast listen socket
         try (MulticastSocket multiSocket = new MulticastSocket(PORT))
         {
+            this.multiSocket = multiSocket;
             InetAddress group = InetAddress.getByName(MULTICAST_ADDRESS);
             multiSocket.joinGroup(group);
-            byte[] multiData = new byte[2048];
-            DatagramPacket multiPacket = new DatagramPacket(multiData, multiData.length);
-            Log.d(TAG, "Listening for multicast packet on port " + MULTICAST_ADDRESS + ":" + PORT);
-            multiSocket.receive(multiPacket);
-            String contents = new String(multiPacket.getData(), 0, multiPacket.getLength());
-            Log.d(TAG, "Got packet:" + contents);
-            Log.d(TAG, "Got packet from " + multiPacket.getAddress().getHostAddress());
-            this.host = multiPacket.getAddress().getHostAddress();
-            this.port = Integer.parseInt(contents);
+            boolean confirmed = false;
+            while(!closed)
+            {
+                Beacon beacon = listenForBeacon(multiSocket);
+                if(beacon == null)
+                {
+                    continue;
+                }
+                InetSocketAddress found = beacon.getAddress();
+                metrics.recordBeacon();
+                if(registry.size() == 0)
+                {
+                    metrics.record(ClientMetrics.Phase.DISCOVERY, startTime);
+                }
+                if(registry.announce(found))
+                {
+                    Log.d(TAG, "Feeder found at " + found);
+                }
+                if(found.equals(endpoint))
+                {
+                    syncSupported = beacon.isSyncSupported();
+                    onAnnouncedVersion(beacon.getEpoch(), beacon.getVersion());
+                    if(!confirmed)
+                    {
+                        Log.d(TAG, "Feeder address confirmed.");
+                        confirmed = true;
+                    }
+                    if(firstStateTime == 0)
+                    {
+                        // Until the state has been read, every beacon is another chance to read
+                        // it, in case an earlier read failed or was dropped while paused
+                        requestStateUpdate();
+                    }
+                }
+                else if(endpoint == null || (endpointFailed && firstStateTime == 0))
+                {
+                    confirmed = true;
+                    switchEndpoint(beacon);
+                }
+            }
             multiSocket.leaveGroup(group);
-            ready = true;
         }
         catch (IOException e)
         {
-            e.printStackTrace();
+            if(!closed)
+            {
+                e.printStackTrace();
+            }
         }
         finally
         {
+            this.multiSocket = null;
             if (lock != null)
             {
                 lock.release();
@@ -218,77 +523,1428 @@ public class Client
         }
     }
 
-    public void close()
+    /**
+     * Start using another feeder.
+     */
+    private void switchEndpoint(Beacon beacon)
+    {
+        InetSocketAddress found = beacon.getAddress();
+        Log.d(TAG, "Using feeder at " + found);
+        storeEndpoint(found);
+        scheduler.submit(() -> {
+            synchronized (this)
+            {
+                endpoint = found;
+                syncSupported = beacon.isSyncSupported();
+                // Versions are only meaningful to the feeder that sent them
+                stateEpoch = 0;
+                stateVersion = 0;
+                syncedEpoch = 0;
+                syncedVersion = 0;
+                announcedEpoch = 0;
+                announcedVersion = 0;
+                try
+                {
+                    closeConnection();
+                }
+                catch (IOException e)
+                {
+                    Log.e(TAG,"Could not close.", e);
+                }
+                // Edits kept for the old feeder must not be shown as pending on this one
+                showJournaledEdits(found);
+                if(firstStateTime == 0)
+                {
+                    // Show what we last knew about this feeder instead
+                    cachedSchedule = null;
+                    loadCachedSchedule(found);
+                }
+                fireUpdate();
+            }
+            refreshState();
+        });
+    }
+
+    /**
+     * Refresh the state if the feeder has announced a version that has not been read yet.
+     */
+    private void onAnnouncedVersion(int epoch, int version)
+    {
+        boolean changed = epoch != announcedEpoch || version != announcedVersion;
+        announcedEpoch = epoch;
+        announcedVersion = version;
+        // Only react to a new version, so a failed refresh is not retried on every beacon
+        if(subscribed && version != 0 && changed && !isSynced(epoch, version) && firstStateTime != 0)
+        {
+            Log.d(TAG, "Feeder announced version " + version + " in epoch " + epoch);
+            requestStateUpdate();
+        }
+    }
+
+    /**
+     * Check if a version of the state is the one last read.
+     */
+    private boolean isSynced(int epoch, int version)
+    {
+        return epoch == syncedEpoch && version == syncedVersion;
+    }
+
+    /**
+     * Choose whether to follow the changes made to the schedule by others, e.g. from another
+     * phone, while the schedule is shown. A feeder that announces the version of its state is
+     * asked for the changed slots when a new version is announced. Other feeders are asked for
+     * their state once when subscribing, since they give no notice of changes. If the state
+     * has not been read yet, it is asked for again.
+     */
+    public void setSubscribed(boolean subscribed)
+    {
+        this.subscribed = subscribed;
+        if(!subscribed || endpoint == null)
+        {
+            return;
+        }
+        if(!hasState())
+        {
+            // The first read may have failed, or been dropped when the commands were cancelled
+            requestStateUpdate();
+            return;
+        }
+        int version = announcedVersion;
+        if(version == 0 || !isSynced(announcedEpoch, version))
+        {
+            // Pick up any changes made while we were not subscribed
+            requestStateUpdate();
+        }
+    }
+
+    public boolean isSubscribed()
+    {
+        return subscribed;
+    }
+
+    /**
+     * Get every feeder that has announced itself since the client was created.
+     */
+    public List<InetSocketAddress> getFeeders()
+    {
+        return registry.getFeeders();
+    }
+
+    public FeederRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    /**
+     * Run a manual feeding on several feeders at once.
+     * @param feeders the feeders to feed, e.g. from {@link #getFeeders()}.
+     * @param timeoutMillis the time allowed for all feeders, waiting in the queue included.
+     * @return the future outcome for each feeder.
+     */
+    public CommandFuture<Map<InetSocketAddress, FanOut.Result>> doManual(Collection<InetSocketAddress> feeders, float seconds, long timeoutMillis)
+    {
+        byte[] frame = createManualFrame(seconds);
+        Log.d(TAG,"manual on " + feeders.size() + " feeders");
+        return submitFanOut(feeders, Collections.singletonList(frame), timeoutMillis);
+    }
+
+    /**
+     * Replace the schedule of several feeders at once. Every slot is written, so slots not
+     * used by the schedule are cleared.
+     * @param feeders the feeders to update, e.g. from {@link #getFeeders()}.
+     * @param schedule the feeding times, each in the slot it should occupy.
+     * @param timeoutMillis the time allowed for all feeders to store the whole schedule,
+     * waiting in the queue included.
+     * @return the future outcome for each feeder, including the state it reported last.
+     */
+    public CommandFuture<Map<InetSocketAddress, FanOut.Result>> pushSchedule(Collection<InetSocketAddress> feeders, List<FeedingTime> schedule, long timeoutMillis)
+    {
+        List<byte[]> frames = new ArrayList<>();
+        for(int slot = 0;slot<StateDecoder.SLOT_COUNT;slot++)
+        {
+            FeedingTime ft = null;
+            for(FeedingTime candidate:schedule)
+            {
+                if(candidate.slot == slot)
+                {
+                    ft = candidate;
+                }
+            }
+            frames.add(ft != null ? ScheduleEdit.create(ft).toFrame() : FrameCodec.newDeleteFrame(slot));
+        }
+        Log.d(TAG,"schedule push to " + feeders.size() + " feeders");
+        return submitFanOut(feeders, frames, timeoutMillis);
+    }
+
+    /**
+     * Queue frames to be sent to several feeders at once. Once started, the fan-out runs to
+     * the end of its deadline even if the future is cancelled.
+     */
+    private CommandFuture<Map<InetSocketAddress, FanOut.Result>> submitFanOut(Collection<InetSocketAddress> feeders, List<byte[]> frames, long timeoutMillis)
+    {
+        return submitAsync(() -> {
+            try
+            {
+                return FanOut.run(getEngine(), feeders, frames, commandDeadline.get().getRemainingMillis());
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the feeders.");
+            }
+        }, Deadline.after(timeoutMillis));
+    }
+
+    /**
+     * Get the engine used to talk to many feeders at once.
+     */
+    private synchronized NioEngine getEngine()
     {
-        if(socket != null)
+        if(nioEngine != null)
+        {
+            return nioEngine;
+        }
+        if(fanOutEngine == null)
         {
             try
             {
-                socket.close();
+                fanOutEngine = new NioEngine();
             }
             catch (IOException e)
             {
-                Log.e(TAG,"Could not close.", e);
+                throw new IllegalStateException("Could not start the network engine.", e);
             }
         }
+        return fanOutEngine;
     }
 
-    private void setUpConnection() throws IOException
+    private SharedPreferences getPreferences()
+    {
+        return context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Get the address of the feeder found in a previous run.
+     * @return the address, or null if none is stored.
+     */
+    private InetSocketAddress loadEndpoint()
     {
-        if(!ready)
+        SharedPreferences preferences = getPreferences();
+        String host = preferences.getString(PREFERENCE_HOST, null);
+        int port = preferences.getInt(PREFERENCE_PORT, -1);
+        if(host == null || port < 0)
         {
-            throw new IOException("The connection is not ready.");
+            return null;
         }
-        socket = new Socket(this.host,this.port);
-        socket.setTcpNoDelay(true);
-        out = socket.getOutputStream();
-        in = socket.getInputStream();
+        return new InetSocketAddress(host, port);
     }
 
-    private void closeConnection() throws IOException
+    private void storeEndpoint(InetSocketAddress address)
+    {
+        getPreferences().edit()
+                .putString(PREFERENCE_HOST, address.getAddress().getHostAddress())
+                .putInt(PREFERENCE_PORT, address.getPort())
+                .apply();
+    }
+
+    /**
+     * Get the counters and timings of the work done talking to the feeder.
+     */
+    public ClientMetrics getMetrics()
     {
-        if(socket != null)
+        return metrics;
+    }
+
+    /**
+     * Check if the schedule shown is the one cached from an earlier run, because the state
+     * has not yet been read from the feeder.
+     */
+    public boolean isStale()
+    {
+        return stale;
+    }
+
+    /**
+     * Check if the state has been read from the feeder at least once.
+     */
+    public boolean hasState()
+    {
+        return firstStateTime != 0;
+    }
+
+    /**
+     * Get the time from the creation of the client until the state was first read.
+     * @return the time in milliseconds, or -1 if the state has not been read yet.
+     */
+    public long getTimeToFirstStateMillis()
+    {
+        if(firstStateTime == 0)
         {
-            socket.close();
+            return -1;
         }
+        return (firstStateTime - startTime) / 1000000;
     }
 
     /**
-     * Transmit the message to the server
+     * Queue a command to run in the background after all previously queued commands.
+     * @return false if too many commands are waiting and this one was dropped.
      */
-    private void transmit(byte[] message) throws IOException
+    public boolean submit(Runnable command)
     {
-        out.write(message);
-        out.flush();
+        return scheduler.submit(command);
     }
 
     /**
-     * Find an unused slot for feeding times.
-     * @return the index of the unused slot, -1 if none is found.
+     * Queue a command that must be done by a deadline. If the deadline passes or is cancelled
+     * before the command has started, it is dropped. Otherwise the exchanges with the feeder
+     * it makes are given what remains of the deadline, and are cut short if it is cancelled.
+     * @return false if the queue is full and the command was dropped.
      */
-    public int getAvailableSlot()
+    public boolean submit(Runnable command, Deadline deadline)
     {
-        for(int x = 0;x<18;x++)
-        {
-            boolean found = false;
-            for(FeedingTime ft:feedingTimes)
+        return scheduler.submit(() -> {
+            if(deadline.isExpired())
             {
-                if(ft.slot == x)
-                {
-                    found = true;
-                    break;
-                }
+                Log.d(TAG, "Dropping command, its deadline has passed.");
+                return;
             }
-            if(!found)
+            commandDeadline.set(deadline);
+            try
             {
-                return x;
+                command.run();
             }
-        }
-        return -1;
+            finally
+            {
+                commandDeadline.remove();
+            }
+        });
     }
 
-    public void addUpdateListener(UpdateListener listener)
+    /**
+     * Set the time allowed for a command that is not given a deadline, retries included.
+     */
+    public void setCommandTimeoutMillis(long commandTimeoutMillis)
     {
-        updateListeners.add(listener);
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
+
+    /**
+     * Drop all queued commands that have not yet been sent to the feeder.
+     * Edits that were waiting to be sent are kept in the journal, to be sent once the feeder
+     * is used again. If they can't be kept they are rolled back, and the edit listeners told.
+     */
+    public void cancelPendingCommands()
+    {
+        scheduler.cancelPending();
+        // Only after the scheduler, so that no refresh is left waiting on a dropped task
+        refreshes.cancel();
+        synchronized (this)
+        {
+            // The delayed sync and replay, if any, have been cancelled too
+            journalSyncScheduled = false;
+            replayScheduled = false;
+        }
+        List<ScheduleEdit> queued = new ArrayList<>();
+        synchronized (pendingEdits)
+        {
+            for(ScheduleEdit edit:pendingEdits)
+            {
+                if(edit != editInFlight && !journaledEdits.containsKey(edit))
+                {
+                    queued.add(edit);
+                }
+            }
+        }
+        for(ScheduleEdit edit:queued)
+        {
+            CommandJournal.Entry entry = journalCommand(edit.toFrame());
+            if(entry != null)
+            {
+                synchronized (pendingEdits)
+                {
+                    journaledEdits.put(edit, entry);
+                }
+            }
+        }
+        syncJournal();
+        // Fails the futures of the dropped edits, which rolls back those not journaled
+        cancelQueuedFutures();
+        for(ScheduleEdit edit:queued)
+        {
+            dropEdit(edit);
+        }
+    }
+
+    /**
+     * Get the scheduler that runs the queued commands, e.g. to inspect its statistics.
+     */
+    public CommandScheduler getScheduler()
+    {
+        return scheduler;
+    }
+
+    /**
+     * Get the last state read from the feeder, with any edits that have not yet been
+     * confirmed by the feeder applied. The list is an immutable snapshot, so it can be read from any thread without locking
+     * and never changes while it is being read.
+     */
+    public List<FeedingTime> getFeedingTimes()
+    {
+        return schedule.get();
+    }
+
+    /**
+     * Get the last state read from the feeder, see {@link #getFeedingTimes()}.
+     */
+    public Schedule getSchedule()
+    {
+        return schedule.get();
+    }
+
+    /**
+     * Run the feeder manually and wait until the command has been sent, see
+     * {@link #doManualAsync(float, Deadline)}. Must not be called on the command thread.
+     */
+    public void doManual(float seconds)
+    {
+        checkNotCommandThread();
+        await(doManualAsync(seconds, Deadline.after(commandTimeoutMillis)));
+    }
+
+    private static byte[] createManualFrame(float seconds)
+    {
+        if(seconds>25.5 || seconds < 0.1)
+        {
+            throw new IllegalArgumentException("Seconds must be between 0.1 and 25.5, inclusive.");
+        }
+        return FrameCodec.newManualFrame(Math.round(seconds*10));
+    }
+
+    /**
+     * Read the state of the feeder and wait for it, see {@link #updateStateAsync()}.
+     * Must not be called on the command thread.
+     */
+    public void updateState()
+    {
+        checkNotCommandThread();
+        await(updateStateAsync());
+    }
+
+    /**
+     * Read the state of the feeder on the command thread.
+     */
+    private synchronized void refreshState()
+    {
+        Log.d(TAG,"update");
+        sendMessageAndUpdateState(createUpdateFrame());
+    }
+
+    /**
+     * Create the frame that asks the feeder for its state. If the feeder supports it, only the
+     * slots changed since the state last read are asked for. Only call while holding the lock.
+     */
+    private byte[] createUpdateFrame()
+    {
+        // The non-blocking engine reads replies of a fixed length, so it always asks for all slots
+        if(syncSupported && nioEngine == null)
+        {
+            return FrameCodec.newSyncFrame(stateEpoch, stateVersion);
+        }
+        return FrameCodec.newUpdateFrame();
+    }
+
+    /**
+     * Request a fresh copy of the state from the feeder without blocking.
+     * Requests made while another request is still waiting to be sent are merged with it, and
+     * the state is not fetched until the debounce time has passed, so a burst of requests
+     * results in a single read of the state. A command that reads the state in the meantime,
+     * such as creating a feeding time, satisfies the request as well.
+     * @return the refresh, which all callers it was merged for share.
+     */
+    public CommandFuture<Schedule> requestStateUpdate()
+    {
+        return refreshes.request(commandTimeoutMillis);
+    }
+
+    /**
+     * Set the time, in milliseconds, that a requested refresh waits for more requests before
+     * the state is fetched.
+     */
+    public void setRefreshDebounceMillis(long refreshDebounceMillis)
+    {
+        refreshes.setDebounceMillis(refreshDebounceMillis);
+    }
+
+    private void runRefresh(CommandFuture<Schedule> refresh)
+    {
+        runCommand(refresh, () -> {
+            synchronized (this)
+            {
+                Log.d(TAG,"update");
+                return exchangeState(createUpdateFrame());
+            }
+        });
+    }
+
+    /**
+     * Take the refresh that is waiting to be sent, since the state is about to be read anyway.
+     */
+    private CommandFuture<Schedule> takePendingRefresh()
+    {
+        return refreshes.take();
+    }
+
+    /**
+     * Complete a refresh taken with {@link #takePendingRefresh()}.
+     * If the state could not be read, the refresh is left to run on its own.
+     */
+    private void completeRefresh(CommandFuture<Schedule> refresh, boolean success)
+    {
+        if(refresh != null && success)
+        {
+            refresh.complete(lastRead);
+        }
+    }
+
+    /**
+     * Delete a feeding time and wait for the state the feeder sends back, see
+     * {@link #deleteFeedingTimeAsync(FeedingTime)}. Must not be called on the command thread.
+     */
+    public void deleteFeedingTime(FeedingTime ft)
+    {
+        checkNotCommandThread();
+        await(deleteFeedingTimeAsync(ft));
+    }
+
+    /**
+     * Create a feeding time and wait for the state the feeder sends back, see
+     * {@link #createFeedingTimeAsync(FeedingTime)}. Must not be called on the command thread.
+     */
+    public void createFeedingTime(FeedingTime ft)
+    {
+        checkNotCommandThread();
+        await(createFeedingTimeAsync(ft));
+    }
+
+    /**
+     * Make sure a blocking method is not called on the command thread, where it would wait
+     * for a command queued behind the one it is called from.
+     */
+    private void checkNotCommandThread()
+    {
+        if(scheduler.isCommandThread())
+        {
+            throw new IllegalStateException("A blocking command can't be called on the command thread, use the asynchronous one.");
+        }
+    }
+
+    /**
+     * Wait for a command queued by one of the blocking methods, at most until its deadline.
+     * A failure is logged, as the blocking methods have always done.
+     */
+    private static void await(CommandFuture<?> future)
+    {
+        try
+        {
+            future.get(Math.max(0, future.getDeadline().getRemainingMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            future.cancel(false);
+            Log.e(TAG, "The command did not finish by its deadline.");
+        }
+        catch (CancellationException e)
+        {
+            Log.d(TAG, "The command was cancelled.");
+        }
+        catch (ExecutionException e)
+        {
+            Log.e(TAG, "The command failed.", e.getCause());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Read the state of the feeder in the background.
+     * @return the future schedule sent by the feeder.
+     */
+    public CommandFuture<Schedule> updateStateAsync()
+    {
+        return submitAsync(() -> {
+            synchronized (this)
+            {
+                return exchangeState(createUpdateFrame());
+            }
+        }, Deadline.after(commandTimeoutMillis));
+    }
+
+    /**
+     * Create a feeding time in the background, see {@link #submitEdit(ScheduleEdit)}.
+     */
+    public CommandFuture<Schedule> createFeedingTimeAsync(FeedingTime ft)
+    {
+        return submitEdit(ScheduleEdit.create(ft));
+    }
+
+    /**
+     * Delete a feeding time in the background, see {@link #submitEdit(ScheduleEdit)}.
+     */
+    public CommandFuture<Schedule> deleteFeedingTimeAsync(FeedingTime ft)
+    {
+        return submitEdit(ScheduleEdit.delete(ft));
+    }
+
+    /**
+     * Run the feeder manually in the background. The feeding is dropped if it can't be done
+     * by the deadline, and never kept for later.
+     * @param seconds the number of seconds to run the feeder, from 0.1 to 25.5.
+     * @return a future that completes once the command has been sent.
+     */
+    public CommandFuture<Void> doManualAsync(float seconds, Deadline deadline)
+    {
+        byte[] frame = createManualFrame(seconds);
+        return submitAsync(() -> {
+            synchronized (this)
+            {
+                Log.d(TAG,"manual");
+                exchange(frame, false);
+                return null;
+            }
+        }, deadline);
+    }
+
+    /**
+     * Queue a command whose outcome is reported through a future.
+     */
+    private <T> CommandFuture<T> submitAsync(Command<T> command, Deadline deadline)
+    {
+        CommandFuture<T> future = new CommandFuture<>(deadline);
+        enqueue(future, command);
+        return future;
+    }
+
+    /**
+     * Queue a command for a future, failing the future if the queue is full.
+     * @return false if the command was dropped.
+     */
+    private <T> boolean enqueue(CommandFuture<T> future, Command<T> command)
+    {
+        synchronized (queuedFutures)
+        {
+            queuedFutures.add(future);
+        }
+        boolean queued = scheduler.submit(() -> {
+            synchronized (queuedFutures)
+            {
+                queuedFutures.remove(future);
+            }
+            runCommand(future, command);
+        });
+        if(!queued)
+        {
+            synchronized (queuedFutures)
+            {
+                queuedFutures.remove(future);
+            }
+            future.fail(new IOException("The command queue is full."));
+        }
+        return queued;
+    }
+
+    /**
+     * Run a command on the command thread within the deadline of its future, and complete the
+     * future with the outcome. The future is failed whatever the command throws, so that
+     * nobody is left waiting for it.
+     */
+    private <T> void runCommand(CommandFuture<T> future, Command<T> command)
+    {
+        Deadline deadline = future.getDeadline();
+        if(future.isDone())
+        {
+            // Cancelled while waiting
+            return;
+        }
+        if(deadline.isExpired())
+        {
+            future.fail(new InterruptedIOException("The deadline passed before the command was sent."));
+            return;
+        }
+        commandDeadline.set(deadline);
+        try
+        {
+            future.complete(command.run());
+        }
+        catch (Exception e)
+        {
+            future.fail(e);
+        }
+        catch (Error e)
+        {
+            future.fail(new RuntimeException(e));
+            throw e;
+        }
+        finally
+        {
+            commandDeadline.remove();
+        }
+    }
+
+    /**
+     * Cancel the futures of commands that will no longer run.
+     */
+    private void cancelQueuedFutures()
+    {
+        List<CommandFuture<?>> cancelled;
+        synchronized (queuedFutures)
+        {
+            cancelled = new ArrayList<>(queuedFutures);
+            queuedFutures.clear();
+        }
+        for(CommandFuture<?> future:cancelled)
+        {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Apply an edit to the schedule shown right away, and send it to the feeder in the background.
+     * Once the feeder has sent back its state the edit is either confirmed or, if the state
+     * does not reflect it, rolled back and the edit listeners told. If the feeder can't be
+     * reached the edit is kept in the journal, and still shown, until it can be sent.
+     * @return the future schedule sent by the feeder, failing with an
+     * {@link EditRejectedException} if it does not reflect the edit. If the future fails
+     * before the edit is sent, e.g. because the queue is full or the command was cancelled,
+     * the edit is rolled back.
+     */
+    public CommandFuture<Schedule> submitEdit(ScheduleEdit edit)
+    {
+        Log.d(TAG,"optimistic " + edit);
+        synchronized (pendingEdits)
+        {
+            pendingEdits.add(edit);
+        }
+        publish();
+        fireUpdate();
+        CommandFuture<Schedule> future = new CommandFuture<>(Deadline.after(commandTimeoutMillis));
+        future.addCallback(new CommandFuture.Callback<Schedule>()
+        {
+            @Override
+            public void onSuccess(Schedule result)
+            {
+            }
+
+            @Override
+            public void onFailure(Exception e)
+            {
+                dropEdit(edit);
+            }
+        });
+        enqueue(future, () -> sendEdit(edit));
+        return future;
+    }
+
+    /**
+     * Send a pending edit and reconcile it with the state the feeder sends back.
+     */
+    private Schedule sendEdit(ScheduleEdit edit) throws IOException
+    {
+        synchronized (pendingEdits)
+        {
+            if(!pendingEdits.contains(edit))
+            {
+                throw new InterruptedIOException("The edit was cancelled before it was sent.");
+            }
+            editInFlight = edit;
+        }
+        Schedule result = null;
+        CommandJournal.Entry entry = null;
+        try
+        {
+            synchronized (this)
+            {
+                Log.d(TAG, edit.toString());
+                try
+                {
+                    result = exchangeState(edit.toFrame());
+                }
+                catch (IOException e)
+                {
+                    entry = journalCommand(edit.toFrame());
+                    throw e;
+                }
+            }
+        }
+        finally
+        {
+            synchronized (pendingEdits)
+            {
+                editInFlight = null;
+                if(entry != null)
+                {
+                    // Keep showing the edit, it is sent when the feeder can be reached again
+                    journaledEdits.put(edit, entry);
+                }
+            }
+            if(result == null && entry == null)
+            {
+                rollBack(edit);
+            }
+        }
+        if(!edit.isReflectedIn(result))
+        {
+            rollBack(edit);
+            throw new EditRejectedException(edit);
+        }
+        synchronized (pendingEdits)
+        {
+            pendingEdits.remove(edit);
+        }
+        publish();
+        fireUpdate();
+        return result;
+    }
+
+    /**
+     * Roll back an edit that will not be sent, unless it is being sent or kept in the journal.
+     */
+    private void dropEdit(ScheduleEdit edit)
+    {
+        synchronized (pendingEdits)
+        {
+            if(edit == editInFlight || journaledEdits.containsKey(edit) || !pendingEdits.remove(edit))
+            {
+                return;
+            }
+        }
+        notifyRejected(edit);
+    }
+
+    /**
+     * Take a pending edit out of the schedule, and tell the listeners it was not accepted.
+     */
+    private void rollBack(ScheduleEdit edit)
+    {
+        synchronized (pendingEdits)
+        {
+            pendingEdits.remove(edit);
+        }
+        notifyRejected(edit);
+    }
+
+    private void notifyRejected(ScheduleEdit edit)
+    {
+        Log.w(TAG, "Rolling back " + edit);
+        publish();
+        fireUpdate();
+        for(EditListener listener:editListeners)
+        {
+            listener.editRejected(edit);
+        }
+    }
+
+    /**
+     * Publish the confirmed state, sorted for the current time zone, with the pending edits applied.
+     */
+    private void publish()
+    {
+        Schedule view = confirmed.atOffset(FeedingTime.getCurrentOffsetMinutes());
+        synchronized (pendingEdits)
+        {
+            for(ScheduleEdit edit:pendingEdits)
+            {
+                view = view.apply(edit);
+            }
+        }
+        schedule.set(view);
+    }
+
+    public void addEditListener(EditListener listener)
+    {
+        editListeners.add(listener);
+    }
+
+    public void removeEditListener(EditListener listener)
+    {
+        editListeners.remove(listener);
+    }
+
+    /**
+     * Apply a number of edits to the schedule in the background.
+     * The edits are sent over a single connection without waiting for the reply to each one.
+     * If the feeder does not support this, the edits are sent one at a time instead.
+     * @return the future result for each edit, in order: true if the state the feeder sent in
+     * reply to the edit reflects it, false if it does not or if it is not known whether the
+     * edit was made because the batch failed.
+     */
+    public CommandFuture<boolean[]> applyEdits(List<ScheduleEdit> edits)
+    {
+        List<ScheduleEdit> batch = new ArrayList<>(edits);
+        return submitAsync(() -> {
+            synchronized (this)
+            {
+                return sendEdits(batch);
+            }
+        }, Deadline.after(commandTimeoutMillis));
+    }
+
+    /**
+     * Send a batch of edits on the command thread, see {@link #applyEdits(List)}.
+     */
+    private boolean[] sendEdits(List<ScheduleEdit> edits)
+    {
+        Log.d(TAG,"batch of " + edits.size());
+        boolean[] result = new boolean[edits.size()];
+        if(edits.isEmpty())
+        {
+            return result;
+        }
+        CommandFuture<Schedule> refresh = takePendingRefresh();
+        int answered = 0;
+        boolean complete = false;
+        try
+        {
+            if(!connection.isPeerClosingConnection() && nioEngine == null)
+            {
+                try
+                {
+                    List<Schedule> replies = pipeline(edits);
+                    for(;answered<replies.size();answered++)
+                    {
+                        result[answered] = edits.get(answered).isReflectedIn(replies.get(answered));
+                    }
+                }
+                catch (IOException e)
+                {
+                    Log.d(TAG, "Pipelined edits failed, sending them one at a time.", e);
+                    closeConnection();
+                }
+            }
+            // Send whatever the feeder did not answer one at a time.
+            for(;answered<edits.size();answered++)
+            {
+                ScheduleEdit edit = edits.get(answered);
+                exchange(edit.toFrame(), true);
+                result[answered] = edit.isReflectedIn(lastRead);
+            }
+            complete = true;
+        }
+        catch (IOException e)
+        {
+            // The edits that were not answered are reported as failed
+            Log.e(TAG, "The batch failed after " + answered + " of " + edits.size() + " edits.", e);
+        }
+        if(complete)
+        {
+            notifyListeners();
+        }
+        else if(answered > 0)
+        {
+            // Some edits were made, but the state we have is incomplete
+            requestStateUpdate();
+        }
+        completeRefresh(refresh, complete);
+        return result;
+    }
+
+    /**
+     * Send the frames of all edits in one go, then read the state dump the feeder sends
+     * in reply to each of them.
+     * @return the state sent in reply to each edit answered before the feeder closed the connection.
+     */
+    private List<Schedule> pipeline(List<ScheduleEdit> edits) throws IOException
+    {
+        List<byte[]> frames = new ArrayList<>(edits.size());
+        for(ScheduleEdit edit:edits)
+        {
+            frames.add(edit.toFrame());
+        }
+        Deadline deadline = commandDeadline.get();
+        setUpConnection(deadline);
+        List<Schedule> replies = connection.pipeline(frames, deadline);
+        lastRead = replies.get(replies.size() - 1);
+        Log.d(TAG, "State: " + lastRead);
+        releaseConnection();
+        return replies;
+    }
+
+    /**
+     * Enable or disable reuse of the connection between commands.
+     * If the feeder closes the connection after each reply, the client falls back to
+     * one connection per command regardless of this setting.
+     */
+    public synchronized void setKeepAlive(boolean keepAlive)
+    {
+        try
+        {
+            connection.setKeepAlive(keepAlive);
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG,"Could not close.", e);
+        }
+    }
+
+    /**
+     * Send commands through a non-blocking engine instead of a socket owned by this client.
+     * One engine can be shared by the clients of many feeders, so that a single I/O thread
+     * serves all of them. Set to null to go back to the client's own socket.
+     */
+    public synchronized void setNioEngine(NioEngine nioEngine)
+    {
+        this.nioEngine = nioEngine;
+        try
+        {
+            closeConnection();
+        }
+        catch (IOException e)
+        {
+            Log.e(TAG,"Could not close.", e);
+        }
+    }
+
+    public synchronized boolean isKeepAlive()
+    {
+        return connection.isKeepAlive();
+    }
+
+    /**
+     * Send a message and read back the state.
+     * @return true if the state was read.
+     */
+    private boolean sendMessageAndUpdateState(byte[] bytes)
+    {
+        try
+        {
+            exchangeState(bytes);
+            return true;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Send a message and read the state the feeder sends in reply.
+     * @return the state.
+     */
+    private Schedule exchangeState(byte[] bytes) throws IOException
+    {
+        CommandFuture<Schedule> refresh = takePendingRefresh();
+        boolean success = false;
+        try
+        {
+            exchange(bytes, true);
+            success = true;
+            endpointFailed = false;
+            notifyListeners();
+            scheduleReplay();
+            return lastRead;
+        }
+        catch (IOException e)
+        {
+            endpointFailed = true;
+            throw e;
+        }
+        finally
+        {
+            completeRefresh(refresh, success);
+        }
+    }
+
+    /**
+     * Send a message and read the reply, if any, within the deadline of the command.
+     * A message that is safe to repeat is retried after a failure, with a random back-off
+     * that grows with each attempt and with the round trip time seen so far.
+     */
+    private void exchange(byte[] bytes, boolean readReply) throws IOException
+    {
+        Deadline deadline = commandDeadline.get();
+        if(deadline == null)
+        {
+            deadline = Deadline.after(commandTimeoutMillis);
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        // Close the connection if the command is cancelled, which stops a blocking read
+        deadline.setCancelAction(this::abortExchange);
+        try
+        {
+            for(int attempt = 1;;attempt++)
+            {
+                if(deadline.isExpired())
+                {
+                    throw new InterruptedIOException(deadline.isCancelled() ? "The command was cancelled." : "The deadline has passed.");
+                }
+                long attemptStart = System.nanoTime();
+                try
+                {
+                    if(nioEngine != null)
+                    {
+                        exchangeNio(bytes, readReply, deadline);
+                    }
+                    else
+                    {
+                        exchangeBlocking(bytes, readReply, deadline);
+                    }
+                    updateRtt(System.nanoTime() - attemptStart);
+                    success = true;
+                    return;
+                }
+                catch (IOException e)
+                {
+                    long backoff = getBackoffMillis(attempt);
+                    if(attempt >= MAX_ATTEMPTS || !isRepeatable(bytes) || deadline.isCancelled() || backoff >= deadline.getRemainingMillis())
+                    {
+                        throw e;
+                    }
+                    Log.d(TAG, "Attempt " + attempt + " failed, retrying in " + backoff + " ms.", e);
+                    metrics.recordRetry();
+                    sleep(backoff);
+                }
+            }
+        }
+        finally
+        {
+            deadline.setCancelAction(null);
+            metrics.record(ClientMetrics.Phase.EXCHANGE, start);
+            metrics.recordCommand(success);
+        }
+    }
+
+    /**
+     * Check if a message can be sent again without harm if it is not known whether it arrived.
+     * Reading the state and setting or clearing a slot can; a manual feeding can not.
+     */
+    private static boolean isRepeatable(byte[] bytes)
+    {
+        return bytes.length > 0 && bytes[0] != FrameCodec.MANUAL;
+    }
+
+    /**
+     * Fold the time of a successful exchange into the smoothed round trip time, the way TCP does.
+     */
+    private void updateRtt(long nanos)
+    {
+        long sample = nanos / 1000;
+        long rtt = smoothedRttMicros;
+        smoothedRttMicros = rtt == 0 ? sample : rtt + (sample - rtt) / 8;
+    }
+
+    /**
+     * Get how long to wait before another attempt: a random time up to a limit that starts at
+     * twice the round trip time and doubles with each attempt.
+     */
+    private long getBackoffMillis(int attempt)
+    {
+        long base = Math.max(MIN_BACKOFF_MS, 2 * smoothedRttMicros / 1000);
+        long limit = Math.min(MAX_BACKOFF_MS, base << Math.min(attempt - 1, 16));
+        return MIN_BACKOFF_MS + (long)(random.nextDouble() * (limit - MIN_BACKOFF_MS));
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry.");
+        }
+    }
+
+    /**
+     * Stop a blocking exchange from another thread by closing its connection.
+     */
+    private void abortExchange()
+    {
+        connection.abort();
+    }
+
+    private void exchangeBlocking(byte[] bytes, boolean readReply, Deadline deadline) throws IOException
+    {
+        boolean reused = setUpConnection(deadline);
+        try
+        {
+            send(bytes, readReply, deadline);
+        }
+        catch (IOException e)
+        {
+            closeConnection();
+            // Once send has started, the feeder may have received the message, so a manual
+            // feeding is not sent again even though the connection was found to be dead.
+            if(!reused || deadline.isCancelled() || !isRepeatable(bytes))
+            {
+                throw e;
+            }
+            Log.d(TAG, "Reused connection failed, reconnecting.", e);
+            metrics.recordRetry();
+            setUpConnection(deadline);
+            try
+            {
+                send(bytes, readReply, deadline);
+            }
+            catch (IOException e2)
+            {
+                closeConnection();
+                throw e2;
+            }
+        }
+        releaseConnection();
+    }
+
+    /**
+     * Send a message through the non-blocking engine, and optionally read back the state.
+     */
+    private void exchangeNio(byte[] bytes, boolean readReply, Deadline deadline) throws IOException
+    {
+        InetSocketAddress address = endpoint;
+        if(address == null)
+        {
+            throw new IOException("The connection is not ready.");
+        }
+        byte[] reply = nioEngine.exchange(address, bytes, readReply ? StateDecoder.STATE_SIZE : 0, deadline.getRemainingMillis());
+        metrics.recordConnection(false);
+        metrics.recordBytesSent(bytes.length);
+        metrics.recordBytesReceived(reply.length);
+        if(readReply)
+        {
+            decoder.wrap(reply, 0, reply.length);
+            collectState();
+        }
+    }
+
+    private void send(byte[] bytes, boolean readReply, Deadline deadline) throws IOException
+    {
+        connection.send(bytes, deadline);
+        if(readReply)
+        {
+            if(bytes[0] != FrameCodec.SYNC)
+            {
+                readState();
+            }
+            else if(!readDelta())
+            {
+                // Ask for every slot as part of the same command, so that the caller is never
+                // handed the state from before
+                releaseConnection();
+                setUpConnection(deadline);
+                connection.send(FrameCodec.newSyncFrame(0, 0), deadline);
+                if(!readDelta())
+                {
+                    throw new ProtocolException("The feeder did not send every slot when asked to.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the slots changed since the last state read, and apply them to it.
+     * @return false if the changes do not follow the state we have, in which case the state
+     * is left as it was and every slot must be asked for.
+     */
+    private boolean readDelta() throws IOException
+    {
+        int slots = connection.readDelta(deltaDecoder);
+        int epoch = deltaDecoder.getEpoch();
+        int version = deltaDecoder.getVersion();
+        if(!deltaDecoder.isComplete() && (epoch != stateEpoch || version < stateVersion))
+        {
+            // The feeder has restarted or lost track of its versions, so the changes can't be
+            // applied to what we have. Ask for every slot instead.
+            Log.w(TAG, "Version " + version + " in epoch " + epoch + " does not follow version " + stateVersion + " in epoch " + stateEpoch);
+            stateEpoch = 0;
+            stateVersion = 0;
+            return false;
+        }
+        // A delta since an older version is still correct for a newer state, so the version
+        // is kept when the state is read in full after an edit.
+        lastRead = deltaDecoder.applyTo(lastRead);
+        stateEpoch = epoch;
+        stateVersion = version;
+        syncedEpoch = epoch;
+        syncedVersion = version;
+        Log.d(TAG, slots == 0 ? "State not modified, version " + stateVersion : "State: " + lastRead);
+        return true;
+    }
+
+    /**
+     * Read the whole state dump from the feeder.
+     * @throws EOFException if the feeder closed the connection before sending all of it.
+     */
+    private void readState() throws IOException
+    {
+        connection.readState(decoder);
+        collectState();
+    }
+
+    /**
+     * Keep the last state decoded.
+     */
+    private void collectState()
+    {
+        lastRead = decoder.toSchedule();
+        Log.d(TAG, "State: " + lastRead);
+    }
+
+    /**
+     * Publish the feeding times just read and tell the listeners about them.
+     */
+    private void notifyListeners()
+    {
+        if(lastRead == confirmed && !stale && firstStateTime != 0)
+        {
+            // The feeder reported that nothing has changed
+            return;
+        }
+        confirmed = lastRead;
+        stale = false;
+        publish();
+        storeCachedSchedule();
+        if(firstStateTime == 0)
+        {
+            firstStateTime = System.nanoTime();
+            Log.i(TAG, "First state read " + getTimeToFirstStateMillis() + " ms after start.");
+        }
+        fireUpdate();
+    }
+
+    private void fireUpdate()
+    {
+        Schedule view = schedule.get();
+        // Notify listeners that we have an update list
+        for (UpdateListener ul:updateListeners)
+        {
+            ul.notifyUpdate(view);
+        }
+    }
+
+    /**
+     * Re-sort the schedule if the offset between UTC and local time has changed, because the
+     * time zone was changed or daylight saving time started or ended. The listeners are
+     * notified if the schedule changed.
+     */
+    public void checkTimeZone()
+    {
+        int offset = FeedingTime.getCurrentOffsetMinutes();
+        if(schedule.get().getOffsetMinutes() != offset)
+        {
+            Log.d(TAG, "Time zone offset changed to " + offset + " minutes.");
+            publish();
+            fireUpdate();
+        }
+    }
+
+    /**
+     * Wait for the next beacon that a feeder sends to announce itself.
+     * @return the beacon, or null if it could not be understood.
+     */
+    private Beacon listenForBeacon(MulticastSocket multiSocket) throws IOException
+    {
+        byte[] multiData = new byte[2048];
+        DatagramPacket multiPacket = new DatagramPacket(multiData, multiData.length);
+        Log.d(TAG, "Listening for multicast packet on port " + MULTICAST_ADDRESS + ":" + PORT);
+        multiSocket.receive(multiPacket);
+        String contents = new String(multiPacket.getData(), 0, multiPacket.getLength());
+        Log.d(TAG, "Got packet:" + contents);
+        Log.d(TAG, "Got packet from " + multiPacket.getAddress().getHostAddress());
+        Beacon beacon = Beacon.parse(multiPacket.getAddress(), contents);
+        if(beacon == null)
+        {
+            Log.w(TAG, "Unknown beacon: " + contents);
+        }
+        return beacon;
+    }
+
+    public void close()
+    {
+        closed = true;
+        scheduler.shutdown();
+        refreshes.cancel();
+        cancelQueuedFutures();
+        synchronized (this)
+        {
+            if(fanOutEngine != null)
+            {
+                fanOutEngine.close();
+                fanOutEngine = null;
+            }
+            if(journal != null)
+            {
+                try
+                {
+                    journal.close();
+                }
+                catch (IOException e)
+                {
+                    Log.e(TAG, "Could not close the command journal.", e);
+                }
+                journal = null;
+            }
+        }
+        MulticastSocket ms = multiSocket;
+        if(ms != null)
+        {
+            ms.close();
+        }
+        connection.abort();
+    }
+
+    /**
+     * Make sure there is an open connection to the feeder.
+     * @return true if an existing connection is reused, false if a new one was opened.
+     */
+    private boolean setUpConnection(Deadline deadline) throws IOException
+    {
+        InetSocketAddress address = endpoint;
+        if(address == null)
+        {
+            throw new IOException("The connection is not ready.");
+        }
+        boolean peerClosed = connection.isPeerClosingConnection();
+        boolean reused = connection.open(address, deadline);
+        if(!peerClosed && connection.isPeerClosingConnection())
+        {
+            Log.d(TAG, "The feeder closes the connection after each reply, using one connection per command.");
+        }
+        return reused;
+    }
+
+    /**
+     * Keep the connection for the next command, or close it if it should not be reused.
+     */
+    private void releaseConnection() throws IOException
+    {
+        connection.release();
+    }
+
+    private void closeConnection() throws IOException
+    {
+        connection.close();
+    }
+
+    /**
+     * Find an unused slot for feeding times.
+     * @return the index of the unused slot, -1 if none is found.
+     */
+    public int getAvailableSlot()
+    {
+        return schedule.get().getFreeSlot();
+    }
+
+    public void addUpdateListener(UpdateListener listener)
+    {
+        updateListeners.add(listener);
+    }
+
+    public void removeUpdateListener(UpdateListener listener)
+    {
+        updateListeners.remove(listener);
     }
 }
@@ -0,0 +1,77 @@
+package st.crosscheck.fishfeeder;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Keeps a single client for the whole process, so that the address of the feeder, the open
+ * connection and the last known state survive when an activity is paused or recreated.
+ * The client follows changes to the schedule while it has users, and is closed once it has
+ * been unused for a while.
+ *
+ * @author Erik Berglund
+ */
+public final class ClientSession
+{
+    private static final String TAG = ClientSession.class.getSimpleName();
+    // How long the client is kept after the last user has released it.
+    private static final long IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+    private static final Runnable teardown = ClientSession::teardown;
+    private static Client client;
+    private static int users;
+
+    private ClientSession()
+    {
+    }
+
+    /**
+     * Get the shared client, creating it if needed, and register a listener with it.
+     * Each call must be matched by a call to {@link #release(UpdateListener)}.
+     */
+    public static synchronized Client acquire(Context context, UpdateListener listener)
+    {
+        handler.removeCallbacks(teardown);
+        if(client == null)
+        {
+            client = new Client(context.getApplicationContext(), null);
+        }
+        // Follow changes made elsewhere while the schedule is shown, and pick up any made while we were away
+        client.setSubscribed(true);
+        client.addUpdateListener(listener);
+        users++;
+        return client;
+    }
+
+    /**
+     * Unregister a listener. When the client has no users left, it is closed after the idle timeout.
+     */
+    public static synchronized void release(UpdateListener listener)
+    {
+        if(client == null)
+        {
+            return;
+        }
+        client.removeUpdateListener(listener);
+        users--;
+        if(users <= 0)
+        {
+            users = 0;
+            // Nobody is looking, so there is no need to follow changes
+            client.setSubscribed(false);
+            handler.postDelayed(teardown, IDLE_TIMEOUT_MS);
+        }
+    }
+
+    private static synchronized void teardown()
+    {
+        if(client != null && users == 0)
+        {
+            Log.d(TAG, "Closing idle client.");
+            client.close();
+            client = null;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package st.crosscheck.fishfeeder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import st.crosscheck.fishfeeder.net.Deadline;
+
+/**
+ * The result of a command sent to the feeder in the background: either a value, such as the
+ * schedule the feeder sent back, or the reason the command failed.
+ * <p>
+ * A callback can be added to be told the outcome without waiting for it. Cancelling the future
+ * cancels the deadline of the command, which drops it if it has not started and stops it if
+ * it is running.
+ *
+ * @author Erik Berglund
+ */
+public class CommandFuture<T> implements Future<T>
+{
+    /**
+     * Receives the outcome of a command, on the thread that completes it, or on the thread
+     * adding the callback if the command is already done.
+     */
+    public interface Callback<T>
+    {
+        void onSuccess(T result);
+
+        /**
+         * @param e the reason the command failed, a {@link CancellationException} if it was cancelled.
+         */
+        void onFailure(Exception e);
+    }
+
+    private final Deadline deadline;
+    private final CountDownLatch done = new CountDownLatch(1);
+    // Guarded by this, until done.
+    private final List<Callback<T>> callbacks = new ArrayList<>();
+    private boolean completed;
+    private T result;
+    private Exception error;
+
+    CommandFuture(Deadline deadline)
+    {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Get the deadline the command runs against.
+     */
+    public Deadline getDeadline()
+    {
+        return deadline;
+    }
+
+    /**
+     * Be told the outcome of the command once it is known.
+     */
+    public void addCallback(Callback<T> callback)
+    {
+        synchronized (this)
+        {
+            if(!completed)
+            {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        deliver(callback);
+    }
+
+    void complete(T result)
+    {
+        finish(result, null);
+    }
+
+    void fail(Exception e)
+    {
+        finish(null, e);
+    }
+
+    /**
+     * Set the outcome, unless it has already been set.
+     */
+    private void finish(T result, Exception e)
+    {
+        List<Callback<T>> toNotify;
+        synchronized (this)
+        {
+            if(completed)
+            {
+                return;
+            }
+            completed = true;
+            this.result = result;
+            this.error = e;
+            toNotify = new ArrayList<>(callbacks);
+            callbacks.clear();
+        }
+        done.countDown();
+        for(Callback<T> callback:toNotify)
+        {
+            deliver(callback);
+        }
+    }
+
+    private void deliver(Callback<T> callback)
+    {
+        if(error == null)
+        {
+            callback.onSuccess(result);
+        }
+        else
+        {
+            callback.onFailure(error);
+        }
+    }
+
+    /**
+     * Cancel the command, see the class description.
+     * @param mayInterruptIfRunning ignored, a running command is always stopped.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        synchronized (this)
+        {
+            if(completed)
+            {
+                return false;
+            }
+        }
+        fail(new CancellationException("The command was cancelled."));
+        deadline.cancel();
+        return isCancelled();
+    }
+
+    @Override
+    public synchronized boolean isCancelled()
+    {
+        return error instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone()
+    {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException
+    {
+        done.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException
+    {
+        if(!done.await(timeout, unit))
+        {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException
+    {
+        if(error instanceof CancellationException)
+        {
+            throw (CancellationException)error;
+        }
+        if(error != null)
+        {
+            throw new ExecutionException(error);
+        }
+        return result;
+    }
+}
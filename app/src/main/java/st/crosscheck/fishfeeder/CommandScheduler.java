@@ -0,0 +1,192 @@
+package st.crosscheck.fishfeeder;
+
+import android.util.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the commands sent to the feeder one at a time, in the order they were submitted, on a
+ * single background thread. The number of commands waiting to run is bounded, and statistics
+ * about the queue are kept so that a backlog can be detected.
+ *
+ * @author Erik Berglund
+ */
+public class CommandScheduler
+{
+    private static final String TAG = CommandScheduler.class.getSimpleName();
+    private final ScheduledThreadPoolExecutor executor;
+    // The thread the commands run on, once it has been started.
+    private volatile Thread commandThread;
+    private final int capacity;
+    private long completedCount;
+    private long rejectedCount;
+    private long cancelledCount;
+    private int maxQueueDepth;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * Create a scheduler.
+     * @param capacity the maximum number of commands waiting to run.
+     */
+    public CommandScheduler(int capacity)
+    {
+        this.capacity = capacity;
+        executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, TAG);
+            t.setDaemon(true);
+            commandThread = t;
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queue a command to run after all previously submitted commands.
+     * @return false if the queue is full or the scheduler is shut down, and the command was dropped.
+     */
+    public boolean submit(Runnable command)
+    {
+        return schedule(command, 0);
+    }
+
+    /**
+     * Queue a command to run once the delay has passed, after all commands submitted before that.
+     * A delayed command occupies a place in the queue while it waits.
+     * @return false if the queue is full or the scheduler is shut down, and the command was dropped.
+     */
+    public synchronized boolean schedule(Runnable command, long delayMillis)
+    {
+        int depth = executor.getQueue().size();
+        if(depth >= capacity || executor.isShutdown())
+        {
+            rejectedCount++;
+            Log.w(TAG, "Command queue full, dropping command.");
+            return false;
+        }
+        executor.schedule(new TimedCommand(command, delayMillis), delayMillis, TimeUnit.MILLISECONDS);
+        maxQueueDepth = Math.max(maxQueueDepth, depth + 1);
+        return true;
+    }
+
+    /**
+     * Drop all commands that have not started running yet.
+     * A command that is already running is allowed to finish.
+     */
+    public synchronized void cancelPending()
+    {
+        for(Runnable r:executor.getQueue().toArray(new Runnable[0]))
+        {
+            if(((Future<?>)r).cancel(false))
+            {
+                cancelledCount++;
+            }
+        }
+    }
+
+    /**
+     * Stop the scheduler, dropping pending commands and interrupting the running one.
+     */
+    public synchronized void shutdown()
+    {
+        cancelPending();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Check if the caller is running on the command thread, where waiting for another command
+     * would never end.
+     */
+    public boolean isCommandThread()
+    {
+        return Thread.currentThread() == commandThread;
+    }
+
+    /**
+     * Get the number of commands waiting to run.
+     */
+    public int getQueueDepth()
+    {
+        return executor.getQueue().size();
+    }
+
+    public synchronized int getMaxQueueDepth()
+    {
+        return maxQueueDepth;
+    }
+
+    public synchronized long getCompletedCount()
+    {
+        return completedCount;
+    }
+
+    public synchronized long getRejectedCount()
+    {
+        return rejectedCount;
+    }
+
+    public synchronized long getCancelledCount()
+    {
+        return cancelledCount;
+    }
+
+    /**
+     * Get the average time, in milliseconds, a command spent in the queue before it started running.
+     */
+    public synchronized long getAverageWaitMillis()
+    {
+        if(completedCount == 0)
+        {
+            return 0;
+        }
+        return totalWaitNanos / completedCount / 1000000;
+    }
+
+    /**
+     * Get the longest time, in milliseconds, a command spent in the queue before it started running.
+     */
+    public synchronized long getMaxWaitMillis()
+    {
+        return maxWaitNanos / 1000000;
+    }
+
+    private synchronized void recordWait(long waitNanos)
+    {
+        completedCount++;
+        totalWaitNanos += waitNanos;
+        maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+    }
+
+    /**
+     * Wraps a command to measure how long it waited in the queue.
+     * Any requested delay does not count as waiting.
+     */
+    private class TimedCommand implements Runnable
+    {
+        private final Runnable command;
+        private final long dueTime;
+
+        TimedCommand(Runnable command, long delayMillis)
+        {
+            this.command = command;
+            this.dueTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        }
+
+        @Override
+        public void run()
+        {
+            recordWait(Math.max(0, System.nanoTime() - dueTime));
+            try
+            {
+                command.run();
+            }
+            catch (RuntimeException e)
+            {
+                // Don't let one failing command stop the ones behind it
+                Log.e(TAG, "Command failed.", e);
+            }
+        }
+    }
+}
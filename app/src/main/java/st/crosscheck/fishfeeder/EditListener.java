@@ -0,0 +1,17 @@
+package st.crosscheck.fishfeeder;
+
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
+
+/**
+ * All classes that want to be told when a change to the schedule, already shown to the user,
+ * has been rolled back must implement this interface and register with the Client.
+ *
+ * @author Erik Berglund
+ */
+public interface EditListener
+{
+    /**
+     * Called when the feeder did not accept an edit, or it could not be sent.
+     */
+    void editRejected(ScheduleEdit edit);
+}
@@ -0,0 +1,26 @@
+package st.crosscheck.fishfeeder;
+
+import java.io.IOException;
+
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
+
+/**
+ * Thrown when the feeder replied to an edit with a state that does not reflect it.
+ *
+ * @author Erik Berglund
+ */
+public class EditRejectedException extends IOException
+{
+    private final ScheduleEdit edit;
+
+    public EditRejectedException(ScheduleEdit edit)
+    {
+        super("The feeder did not accept " + edit);
+        this.edit = edit;
+    }
+
+    public ScheduleEdit getEdit()
+    {
+        return edit;
+    }
+}
@@ -2,11 +2,17 @@ package st.crosscheck.fishfeeder;
 
 import android.app.AlertDialog;
 import android.app.Dialog;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.widget.Button;
 import android.widget.NumberPicker;
@@ -16,6 +22,7 @@ import com.google.android.material.snackbar.Snackbar;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
+import java.util.concurrent.CancellationException;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
@@ -24,21 +31,37 @@ import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 import st.crosscheck.fishfeeder.data.FeedingTime;
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
 import st.crosscheck.fishfeeder.databinding.ActivityMainBinding;
 import st.crosscheck.fishfeeder.list.FeedingTimeAdapter;
 import st.crosscheck.fishfeeder.list.SwipeToDeleteCallback;
+import st.crosscheck.fishfeeder.net.Deadline;
 
-public class MainActivity extends AppCompatActivity implements UpdateListener
+public class MainActivity extends AppCompatActivity implements UpdateListener, EditListener
 {
     private static final String TAG = MainActivity.class.getSimpleName();
     // The number of seconds to run the servo when the "MANUAL" button is pressed.
     private static final float MANUAL_FEEDING_SECONDS = 0.3f;
+    // A manual feeding that can't be done within this many milliseconds is dropped.
+    private static final long MANUAL_FEEDING_DEADLINE_MS = 5000;
+    // The opacity of the list while it shows a schedule cached from an earlier run.
+    private static final float STALE_ALPHA = 0.5f;
 
     private Client client;
     private RecyclerView recyclerView;
     private CoordinatorLayout coordinatorLayout;
     private FeedingTimeAdapter mAdapter;
     private View progressBarHolder;
+    // Re-sorts the schedule when the time zone or the clock is changed.
+    private final BroadcastReceiver timeChangeReceiver = new BroadcastReceiver()
+    {
+        @Override
+        public void onReceive(Context context, Intent intent)
+        {
+            client.checkTimeZone();
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState)
@@ -47,6 +70,8 @@ public class MainActivity extends AppCompatActivity implements UpdateListener
 
         st.crosscheck.fishfeeder.databinding.ActivityMainBinding binding = ActivityMainBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
+        // The theme has no action bar, so the toolbar carries the menu
+        setSupportActionBar(binding.toolbar);
         progressBarHolder = binding.getRoot().findViewById(R.id.progressBarHolder);
 
         recyclerView = binding.getRoot().findViewById(R.id.store_listview);
@@ -58,21 +83,79 @@ public class MainActivity extends AppCompatActivity implements UpdateListener
         Button addButton = binding.getRoot().findViewById(R.id.addButton);
         addButton.setOnClickListener(this::createFeedingTime);
 
+        recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        mAdapter = new FeedingTimeAdapter();
+        recyclerView.setAdapter(mAdapter);
+        enableSwipeToDeleteAndUndo();
     }
 
     @Override
     public void onResume()
     {
         super.onResume();
-        progressBarHolder.setVisibility(View.VISIBLE);
-        client = new Client(this, this);
+        client = ClientSession.acquire(this, this);
+        client.addEditListener(this);
+        // Daylight saving time may have started or ended while we were away
+        client.checkTimeZone();
+        IntentFilter filter = new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        registerReceiver(timeChangeReceiver, filter);
+        if(client.hasState() || client.isStale())
+        {
+            // Show the schedule we already have while it is being refreshed
+            notifyUpdate(client.getSchedule());
+        }
+        else
+        {
+            progressBarHolder.setVisibility(View.VISIBLE);
+        }
     }
 
     @Override
     public void onPause()
     {
         super.onPause();
-        client.close();
+        unregisterReceiver(timeChangeReceiver);
+        client.removeEditListener(this);
+        client.cancelPendingCommands();
+        ClientSession.release(this);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu)
+    {
+        getMenuInflater().inflate(R.menu.main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item)
+    {
+        if(item.getItemId() == R.id.action_diagnostics)
+        {
+            showDiagnostics();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Show how the client has been doing: how long things take and how often they fail.
+     */
+    private void showDiagnostics()
+    {
+        String message = client.getMetrics().toString();
+        long firstState = client.getTimeToFirstStateMillis();
+        if(firstState >= 0)
+        {
+            message = getString(R.string.time_to_first_state, firstState) + "\n\n" + message;
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.diagnostics)
+                .setMessage(message)
+                .setPositiveButton(R.string.ok, null)
+                .setNeutralButton(R.string.reset, (dialog, which) -> client.getMetrics().reset())
+                .show();
     }
 
     private void enableSwipeToDeleteAndUndo() {
@@ -150,8 +233,7 @@ public class MainActivity extends AppCompatActivity implements UpdateListener
      */
     private void createFeedingTime(FeedingTime ft)
     {
-        Thread t = new Thread(() -> client.createFeedingTime(ft));
-        t.start();
+        client.submitEdit(ScheduleEdit.create(ft));
     }
 
     /**
@@ -159,8 +241,7 @@ public class MainActivity extends AppCompatActivity implements UpdateListener
      */
     private void deleteFeedingTime(FeedingTime ft)
     {
-        Thread t = new Thread(() -> client.deleteFeedingTime(ft));
-        t.start();
+        client.submitEdit(ScheduleEdit.delete(ft));
     }
 
     /**
@@ -190,16 +271,14 @@ public class MainActivity extends AppCompatActivity implements UpdateListener
     }
 
     @Override
-    public void notifyUpdate()
+    public void notifyUpdate(Schedule snapshot)
     {
-        // Redraw the list of feeding times
+        // The schedule is an immutable snapshot, the adapter works out what has changed
+        final boolean stale = client.isStale();
         new Handler(Looper.getMainLooper()).post(() -> {
-            LinearLayoutManager linearLayout = new LinearLayoutManager(MainActivity.this);
-            recyclerView.setLayoutManager(linearLayout);
-            mAdapter = new FeedingTimeAdapter( client);
-            recyclerView.setAdapter(mAdapter);
-
-            enableSwipeToDeleteAndUndo();
+            mAdapter.submitList(snapshot);
+            // Dim the list until it has been confirmed by the feeder
+            recyclerView.setAlpha(stale ? STALE_ALPHA : 1.0f);
         });
         // Remove progressbar
         if (this.progressBarHolder != null)
@@ -216,12 +295,42 @@ public class MainActivity extends AppCompatActivity implements UpdateListener
         }
     }
 
+    @Override
+    public void editRejected(ScheduleEdit edit)
+    {
+        // The change has already been taken out of the list, tell the user why
+        new Handler(Looper.getMainLooper()).post(() -> Snackbar
+                .make(coordinatorLayout, getText(R.string.change_rejected), Snackbar.LENGTH_LONG)
+                .show());
+    }
+
     /**
      * Send a manual feeding command to the embedded hardware.
      */
     public void sendManual(View view)
     {
-        Thread t = new Thread(() -> client.doManual(MANUAL_FEEDING_SECONDS));
-        t.start();
+        // Feeding long after the button was pressed would be a surprise
+        client.doManualAsync(MANUAL_FEEDING_SECONDS, Deadline.after(MANUAL_FEEDING_DEADLINE_MS))
+                .addCallback(new CommandFuture.Callback<Void>()
+                {
+                    @Override
+                    public void onSuccess(Void result)
+                    {
+                    }
+
+                    @Override
+                    public void onFailure(Exception e)
+                    {
+                        Log.d(TAG, "Manual feeding failed.", e);
+                        if(e instanceof CancellationException)
+                        {
+                            // We are going away, nothing to tell
+                            return;
+                        }
+                        new Handler(Looper.getMainLooper()).post(() -> Snackbar
+                                .make(coordinatorLayout, getText(R.string.feeder_unreachable), Snackbar.LENGTH_LONG)
+                                .show());
+                    }
+                });
     }
 }
\ No newline at end of file
@@ -0,0 +1,124 @@
+package st.crosscheck.fishfeeder;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.net.Deadline;
+
+/**
+ * Merges requests to read the state of the feeder, so that a burst of requests results in a
+ * single read. A request waits on the command scheduler for the debounce time before it runs,
+ * and requests made in the meantime share it.
+ *
+ * @author Erik Berglund
+ */
+class RefreshCoalescer
+{
+    /**
+     * Reads the state for a refresh and completes the refresh.
+     */
+    interface Reader
+    {
+        void read(CommandFuture<Schedule> refresh);
+    }
+
+    private final CommandScheduler scheduler;
+    private final Reader reader;
+    private final Object lock = new Object();
+    // A refresh that has been requested but has not yet started reading the state.
+    private CommandFuture<Schedule> pending;
+    // Every refresh whose task is waiting on the scheduler, including one taken by another command.
+    private final Set<CommandFuture<Schedule>> scheduled = new HashSet<>();
+    private volatile long debounceMillis;
+
+    RefreshCoalescer(CommandScheduler scheduler, Reader reader, long debounceMillis)
+    {
+        this.scheduler = scheduler;
+        this.reader = reader;
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Request a refresh, merging the request with the one waiting to run, if any.
+     * @param timeoutMillis the time allowed for reading the state once the debounce time has passed.
+     * @return the refresh, which all callers it was merged for share.
+     */
+    CommandFuture<Schedule> request(long timeoutMillis)
+    {
+        synchronized (lock)
+        {
+            if(pending != null)
+            {
+                return pending;
+            }
+            long delay = debounceMillis;
+            CommandFuture<Schedule> refresh = new CommandFuture<>(Deadline.after(delay + timeoutMillis));
+            if(scheduler.schedule(() -> run(refresh), delay))
+            {
+                pending = refresh;
+                scheduled.add(refresh);
+            }
+            else
+            {
+                refresh.fail(new IOException("The command queue is full."));
+            }
+            return refresh;
+        }
+    }
+
+    void setDebounceMillis(long debounceMillis)
+    {
+        this.debounceMillis = debounceMillis;
+    }
+
+    /**
+     * Take the refresh that is waiting to run, for a command that is about to read the state anyway.
+     * Its task stays scheduled, so it still runs if the command fails to read the state.
+     * @return the refresh, or null if none is waiting.
+     */
+    CommandFuture<Schedule> take()
+    {
+        synchronized (lock)
+        {
+            CommandFuture<Schedule> refresh = pending;
+            pending = null;
+            return refresh;
+        }
+    }
+
+    /**
+     * Cancel every refresh whose task has not started. Call after the pending commands of the
+     * scheduler have been dropped, so that later requests are not merged with a refresh that
+     * will never run.
+     */
+    void cancel()
+    {
+        synchronized (lock)
+        {
+            pending = null;
+            for(CommandFuture<Schedule> refresh:scheduled)
+            {
+                refresh.cancel(false);
+            }
+            scheduled.clear();
+        }
+    }
+
+    private void run(CommandFuture<Schedule> refresh)
+    {
+        synchronized (lock)
+        {
+            if(pending == refresh)
+            {
+                pending = null;
+            }
+            scheduled.remove(refresh);
+        }
+        if(!refresh.isDone())
+        {
+            reader.read(refresh);
+        }
+    }
+}
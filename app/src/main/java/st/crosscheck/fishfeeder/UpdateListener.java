@@ -1,5 +1,7 @@
 package st.crosscheck.fishfeeder;
 
+import st.crosscheck.fishfeeder.data.Schedule;
+
 /**
  * All classes that want to received updates when the client receives a new list of FeedTimes
  * must implement this interface and register with the Client.
@@ -8,5 +10,9 @@ package st.crosscheck.fishfeeder;
  */
 public interface UpdateListener
 {
-    void notifyUpdate();
+    /**
+     * @param schedule the schedule as it was when the listeners were notified. It is immutable,
+     *                 so it can be handed to another thread as it is.
+     */
+    void notifyUpdate(Schedule schedule);
 }
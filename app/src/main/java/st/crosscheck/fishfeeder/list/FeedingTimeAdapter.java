@@ -6,22 +6,41 @@ import android.view.ViewGroup;
 import st.crosscheck.fishfeeder.R;
 
 import androidx.annotation.NonNull;
-import androidx.recyclerview.widget.RecyclerView;
-import st.crosscheck.fishfeeder.Client;
+import androidx.recyclerview.widget.DiffUtil;
+import androidx.recyclerview.widget.ListAdapter;
 import st.crosscheck.fishfeeder.data.FeedingTime;
 
 /**
  * An adapter for the RecyclerView list.
+ * The adapter is given immutable snapshots of the schedule, and the difference to the previous
+ * snapshot is computed on a background thread so that only the rows that changed are updated.
  *
  * @author Erik Berglund
  */
-public class FeedingTimeAdapter  extends RecyclerView.Adapter<FeedingTimeHolder>
+public class FeedingTimeAdapter  extends ListAdapter<FeedingTime, FeedingTimeHolder>
 {
-    private final Client client;
+    private static final DiffUtil.ItemCallback<FeedingTime> DIFF_CALLBACK = new DiffUtil.ItemCallback<FeedingTime>()
+    {
+        @Override
+        public boolean areItemsTheSame(@NonNull FeedingTime oldItem, @NonNull FeedingTime newItem)
+        {
+            return oldItem.slot == newItem.slot;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull FeedingTime oldItem, @NonNull FeedingTime newItem)
+        {
+            // The local time is shown, and it changes with the offset even if the UTC time does not
+            return oldItem.hour == newItem.hour
+                    && oldItem.minute == newItem.minute
+                    && oldItem.getMinutesSinceMidnightLocalTime() == newItem.getMinutesSinceMidnightLocalTime()
+                    && oldItem.getDeciSeconds() == newItem.getDeciSeconds();
+        }
+    };
 
-    public FeedingTimeAdapter(Client client)
+    public FeedingTimeAdapter()
     {
-        this.client = client;
+        super(DIFF_CALLBACK);
     }
 
     @NonNull
@@ -35,31 +54,19 @@ public class FeedingTimeAdapter  extends RecyclerView.Adapter<FeedingTimeHolder>
     @Override
     public void onBindViewHolder(@NonNull FeedingTimeHolder holder, int position)
     {
-        FeedingTime ft = client.getFeedingTimes().get(position);
+        FeedingTime ft = getItem(position);
         holder.setFeedingTime(ft);
     }
 
-    @Override
-    public int getItemCount()
+    public FeedingTime getFeedingTime(int position)
     {
-        synchronized (client)
+        if(position >= 0 && getItemCount() > position)
         {
-            return client.getFeedingTimes().size();
+            return getItem(position);
         }
-    }
-
-    public FeedingTime getFeedingTime(int position)
-    {
-        synchronized (client)
+        else
         {
-            if(client.getFeedingTimes().size() > position)
-            {
-                return client.getFeedingTimes().get(position);
-            }
-            else
-            {
-                return null;
-            }
+            return null;
         }
     }
 }
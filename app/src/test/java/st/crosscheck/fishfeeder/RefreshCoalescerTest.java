@@ -0,0 +1,84 @@
+package st.crosscheck.fishfeeder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.data.Schedule;
+
+public class RefreshCoalescerTest
+{
+    private final CommandScheduler scheduler = new CommandScheduler(16);
+    private final AtomicInteger reads = new AtomicInteger();
+    private final RefreshCoalescer refreshes = new RefreshCoalescer(scheduler, refresh -> {
+        reads.incrementAndGet();
+        refresh.complete(Schedule.EMPTY);
+    }, 50);
+
+    @After
+    public void tearDown()
+    {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void requestsWithinTheDebounceTimeShareOneRead() throws Exception
+    {
+        CommandFuture<Schedule> first = refreshes.request(1000);
+        CommandFuture<Schedule> second = refreshes.request(1000);
+        assertSame(first, second);
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void refreshRunsAgainAfterCancel() throws Exception
+    {
+        refreshes.setDebounceMillis(60000);
+        CommandFuture<Schedule> cancelled = refreshes.request(1000);
+        scheduler.cancelPending();
+        refreshes.cancel();
+        assertTrue(cancelled.isDone());
+        assertTrue(cancelled.isCancelled());
+        assertThrows(CancellationException.class, cancelled::get);
+
+        refreshes.setDebounceMillis(0);
+        CommandFuture<Schedule> next = refreshes.request(1000);
+        assertNotSame(cancelled, next);
+        assertNotNull(next.get(5, TimeUnit.SECONDS));
+        assertFalse(next.isCancelled());
+        assertEquals(1, reads.get());
+    }
+
+    @Test
+    public void takenRefreshIsCancelledWithItsTask()
+    {
+        refreshes.setDebounceMillis(60000);
+        CommandFuture<Schedule> taken = refreshes.request(1000);
+        assertSame(taken, refreshes.take());
+        assertNull(refreshes.take());
+        scheduler.cancelPending();
+        refreshes.cancel();
+        assertTrue(taken.isCancelled());
+    }
+
+    @Test
+    public void commandThreadIsRecognised() throws Exception
+    {
+        assertFalse(scheduler.isCommandThread());
+        CommandFuture<Schedule> refresh = new RefreshCoalescer(scheduler, r -> r.complete(scheduler.isCommandThread() ? Schedule.EMPTY : null), 0).request(1000);
+        assertSame(Schedule.EMPTY, refresh.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,78 @@
+package st.crosscheck.fishfeeder.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import st.crosscheck.fishfeeder.data.FeedingTime;
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+
+/**
+ * Encoding the frames that create and delete a feeding time.
+ *
+ * @author Erik Berglund
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameEncodingBenchmark
+{
+    private FeedingTime feedingTime;
+    private ScheduleEdit create;
+    private ScheduleEdit delete;
+    private final ByteBuffer buffer = ByteBuffer.allocate(FrameCodec.MAX_FRAME_SIZE);
+
+    @Setup
+    public void setUp()
+    {
+        feedingTime = new FeedingTime(7, 18, 45, 2.5f, true);
+        create = ScheduleEdit.create(feedingTime);
+        delete = ScheduleEdit.delete(feedingTime);
+    }
+
+    /**
+     * The frame literal the client used to build inline.
+     */
+    @Benchmark
+    public byte[] inlineCreateFrame()
+    {
+        FeedingTime ft = feedingTime;
+        return new byte[]{'c',(byte)ft.slot,(byte)ft.hour,(byte)ft.minute,ft.getDeciSeconds()};
+    }
+
+    @Benchmark
+    public byte[] createFrame()
+    {
+        return create.toFrame();
+    }
+
+    @Benchmark
+    public byte[] deleteFrame()
+    {
+        return delete.toFrame();
+    }
+
+    /**
+     * Encoding into a reused buffer, which allocates nothing.
+     */
+    @Benchmark
+    public ByteBuffer putCreate()
+    {
+        FeedingTime ft = feedingTime;
+        buffer.clear();
+        FrameCodec.putCreate(buffer, ft.slot, ft.hour, ft.minute, ft.getDeciSeconds());
+        return buffer;
+    }
+}
@@ -0,0 +1,59 @@
+package st.crosscheck.fishfeeder.benchmark;
+
+import java.util.TimeZone;
+
+/**
+ * The feeding time as the client used it before the local time was kept with it: every
+ * comparison looks up the time zone of the phone, twice. Kept as the baseline to measure
+ * against.
+ *
+ * @author Erik Berglund
+ */
+class LegacyFeedingTime implements Comparable<LegacyFeedingTime>
+{
+    public int slot;
+    public int hour;
+    public int minute;
+    public float seconds;
+
+    LegacyFeedingTime(int slot, int hour, int minute, float seconds)
+    {
+        this.slot = slot;
+        this.seconds = seconds;
+        this.hour = hour;
+        this.minute = minute;
+    }
+
+    /**
+     * Get the offset, in minutes, between UTC and local time.
+     */
+    private int getOffsetMinutes()
+    {
+        return TimeZone.getDefault().getOffset(System.currentTimeMillis()) / 60000;
+    }
+
+    private int getMinutesSinceMidnightLocalTime()
+    {
+        return clampMinutes(hour*60+minute+getOffsetMinutes());
+    }
+
+    /**
+     * Ensure that the number of minutes is in the range 0 - (24*60-1) (inclusive).
+     */
+    private int clampMinutes(int minutes)
+    {
+        while(minutes < 0)
+        {
+            minutes += 60*24;
+        }
+        // Roll over at midnight
+        minutes %= 24*60;
+        return minutes;
+    }
+
+    @Override
+    public int compareTo(LegacyFeedingTime feedingTime)
+    {
+        return getMinutesSinceMidnightLocalTime()-feedingTime.getMinutesSinceMidnightLocalTime();
+    }
+}
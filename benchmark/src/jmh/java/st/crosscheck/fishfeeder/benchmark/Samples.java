@@ -0,0 +1,41 @@
+package st.crosscheck.fishfeeder.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+/**
+ * Sample data for the benchmarks, the same for every run.
+ *
+ * @author Erik Berglund
+ */
+final class Samples
+{
+    private Samples()
+    {
+    }
+
+    /**
+     * Create a state dump, as sent by the feeder, with a number of slots in use at random times.
+     * The used slots are spread over the dump rather than packed at the start.
+     */
+    static byte[] createState(int usedSlots)
+    {
+        byte[] state = new byte[StateDecoder.STATE_SIZE];
+        Arrays.fill(state, (byte)0xFF);
+        Random random = new Random(usedSlots);
+        int used = 0;
+        while(used < usedSlots)
+        {
+            int slot = random.nextInt(StateDecoder.SLOT_COUNT);
+            if((state[slot * StateDecoder.RECORD_SIZE] & 0xFF) >= 24)
+            {
+                state[slot * StateDecoder.RECORD_SIZE] = (byte)random.nextInt(24);
+                state[slot * StateDecoder.RECORD_SIZE + 1] = (byte)random.nextInt(60);
+                state[slot * StateDecoder.RECORD_SIZE + 2] = (byte)(1 + random.nextInt(255));
+                used++;
+            }
+        }
+        return state;
+    }
+}
@@ -0,0 +1,127 @@
+package st.crosscheck.fishfeeder.benchmark;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import st.crosscheck.fishfeeder.data.FeedingTime;
+import st.crosscheck.fishfeeder.data.Schedule;
+
+/**
+ * Sorting and formatting the feeding times, and finding a free slot.
+ *
+ * @author Erik Berglund
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScheduleBenchmark
+{
+    @Param({"6", "17"})
+    public int usedSlots;
+
+    private Schedule schedule;
+    private List<FeedingTime> feedingTimes;
+    private List<LegacyFeedingTime> legacyFeedingTimes;
+    private int otherOffset;
+
+    @Setup
+    public void setUp()
+    {
+        byte[] state = Samples.createState(usedSlots);
+        schedule = Schedule.fromRecords(state, 0, Schedule.SLOT_COUNT);
+        feedingTimes = new ArrayList<>(schedule);
+        // Shuffled so that sorting has work to do
+        Collections.shuffle(feedingTimes, new Random(usedSlots));
+        legacyFeedingTimes = new ArrayList<>();
+        for(FeedingTime ft:feedingTimes)
+        {
+            legacyFeedingTimes.add(new LegacyFeedingTime(ft.slot, ft.hour, ft.minute, ft.seconds));
+        }
+        otherOffset = schedule.getOffsetMinutes() + 60;
+    }
+
+    /**
+     * The sort the client used to run, which looks up the time zone on every comparison.
+     */
+    @Benchmark
+    public List<LegacyFeedingTime> sortLegacyList()
+    {
+        List<LegacyFeedingTime> sorted = new ArrayList<>(legacyFeedingTimes);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    @Benchmark
+    public List<FeedingTime> sortList()
+    {
+        List<FeedingTime> sorted = new ArrayList<>(feedingTimes);
+        Collections.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * Sort the schedule again, as when the time zone changes.
+     */
+    @Benchmark
+    public Schedule sortSchedule()
+    {
+        return schedule.atOffset(otherOffset);
+    }
+
+    @Benchmark
+    public void format(Blackhole blackhole)
+    {
+        for(int x = 0;x<schedule.size();x++)
+        {
+            blackhole.consume(schedule.get(x).getFormattedTime());
+        }
+    }
+
+    /**
+     * The scan the client used to run over the list for every slot.
+     */
+    @Benchmark
+    public int freeSlotScan()
+    {
+        for(int x = 0;x<18;x++)
+        {
+            boolean found = false;
+            for(FeedingTime ft:feedingTimes)
+            {
+                if(ft.slot == x)
+                {
+                    found = true;
+                    break;
+                }
+            }
+            if(!found)
+            {
+                return x;
+            }
+        }
+        return -1;
+    }
+
+    @Benchmark
+    public int freeSlotMask()
+    {
+        return schedule.getFreeSlot();
+    }
+}
@@ -0,0 +1,160 @@
+package st.crosscheck.fishfeeder.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+/**
+ * Turning the state dump sent by the feeder into a sorted schedule.
+ *
+ * @author Erik Berglund
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateDecodingBenchmark
+{
+    @Param({"0", "6", "18"})
+    public int usedSlots;
+
+    private byte[] state;
+    private ByteBuffer stateBuffer;
+    private final StateDecoder decoder = new StateDecoder();
+    private File stateFile;
+    private RandomAccessFile stateInput;
+    private InputStream stateStream;
+
+    /**
+     * Reads the dump without any buffering, so every call to read costs a system call, as it
+     * did on the socket to the feeder.
+     */
+    private static class UnbufferedStream extends InputStream
+    {
+        private final RandomAccessFile file;
+
+        UnbufferedStream(RandomAccessFile file)
+        {
+            this.file = file;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            return file.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return file.read(b, off, len);
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        state = Samples.createState(usedSlots);
+        stateBuffer = ByteBuffer.wrap(state);
+        stateFile = File.createTempFile("state", ".bin");
+        try (FileOutputStream out = new FileOutputStream(stateFile))
+        {
+            out.write(state);
+        }
+        stateInput = new RandomAccessFile(stateFile, "r");
+        stateStream = new UnbufferedStream(stateInput);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException
+    {
+        stateInput.close();
+        stateFile.delete();
+    }
+
+    /**
+     * The loop the client used to run: one read per byte, a feeding time per slot and a sort
+     * that looks up the time zone on every comparison.
+     */
+    @Benchmark
+    public List<LegacyFeedingTime> perByteLoop() throws IOException
+    {
+        stateInput.seek(0);
+        InputStream in = stateStream;
+        List<LegacyFeedingTime> feedingTimes = new ArrayList<>();
+        int slot = 0;
+        while(true)
+        {
+            int hour = in.read();
+            if(hour < 0)
+                break;
+            int minute = in.read();
+            if(minute < 0)
+                break;
+            int deciSecond = in.read();
+            if (deciSecond < 0)
+                break;
+            LegacyFeedingTime ft = new LegacyFeedingTime(slot, hour,minute,(float)(deciSecond/10.0));
+            if(ft.hour < 24 && ft.minute < 60)
+            {
+                feedingTimes.add(ft);
+            }
+            slot++;
+        }
+        Collections.sort(feedingTimes);
+        return feedingTimes;
+    }
+
+    /**
+     * Reading the dump from the same unbuffered stream in as few reads as it takes.
+     */
+    @Benchmark
+    public Schedule decodeStream() throws IOException
+    {
+        stateInput.seek(0);
+        decoder.read(stateStream);
+        return decoder.toSchedule();
+    }
+
+    @Benchmark
+    public Schedule decodeBuffer()
+    {
+        decoder.wrap(state, 0, state.length);
+        return decoder.toSchedule();
+    }
+
+    /**
+     * Decoding the dump as it arrives from a channel, without creating a schedule, which
+     * allocates nothing.
+     */
+    @Benchmark
+    public int decodeByteBuffer()
+    {
+        stateBuffer.clear();
+        decoder.decode(stateBuffer);
+        return decoder.getSlotCount();
+    }
+}
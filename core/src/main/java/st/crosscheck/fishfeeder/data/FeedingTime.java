@@ -0,0 +1,139 @@
+package st.crosscheck.fishfeeder.data;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A data class which encapsulates a feeding time (in hours and minutes since midnight, UTC) and the
+ * amount of food to dispense (in seconds of running the motor) and the slot position in the list of
+ * feeding times.
+ *
+ * @author Erik Berglund
+ */
+public class FeedingTime implements Comparable<FeedingTime>
+{
+    public final int slot;
+    public final int hour;
+    public final int minute;
+    public final float seconds;
+    // The offset, in minutes, between UTC and local time used for sorting and display.
+    private final int offsetMinutes;
+    // The minutes since midnight, local time, computed once.
+    private final int localMinutes;
+
+    /**
+     * Create a feeding time, using the current offset between UTC and local time.
+     * @param slot The slot number on the feeder.
+     * @param hour the hour after midnight, in 24-hour format
+     * @param minute the minute after the full hour
+     * @param seconds the number of seconds to run the feeder
+     * @param fromUTC if true, the parameters are in UTC, otherwise in the local timezone.
+     */
+    public FeedingTime(int slot, int hour, int minute, float seconds, boolean fromUTC)
+    {
+        this(slot, hour, minute, seconds, fromUTC, getCurrentOffsetMinutes());
+    }
+
+    /**
+     * Create a feeding time.
+     * @param slot The slot number on the feeder.
+     * @param hour the hour after midnight, in 24-hour format
+     * @param minute the minute after the full hour
+     * @param seconds the number of seconds to run the feeder
+     * @param fromUTC if true, the parameters are in UTC, otherwise in the local timezone.
+     * @param offsetMinutes the offset between UTC and local time, see {@link #getCurrentOffsetMinutes()}.
+     */
+    public FeedingTime(int slot, int hour, int minute, float seconds, boolean fromUTC, int offsetMinutes)
+    {
+        this.slot = slot;
+        this.seconds = seconds;
+        this.offsetMinutes = offsetMinutes;
+        if(fromUTC)
+        {
+            this.hour = hour;
+            this.minute = minute;
+        }
+        else
+        {
+            // Handle times before midnight
+            int minutes = clampMinutes(hour*60+minute-offsetMinutes);
+            this.hour = minutes / 60;
+            this.minute = minutes%60;
+        }
+        this.localMinutes = clampMinutes(getMinutesSinceMidnight()+offsetMinutes);
+    }
+
+    /**
+     * Get the offset, in minutes, between UTC and local time right now.
+     * The offset changes with the time zone and with daylight saving time, so it should be
+     * resolved once for a whole schedule rather than for every feeding time.
+     */
+    public static int getCurrentOffsetMinutes()
+    {
+        return TimeZone.getDefault().getOffset(System.currentTimeMillis()) / 60000;
+    }
+
+    /**
+     * Get the offset between UTC and local time that this feeding time is sorted and displayed with.
+     */
+    public int getOffsetMinutes()
+    {
+        return offsetMinutes;
+    }
+
+    public byte getDeciSeconds()
+    {
+        return (byte)Math.round(seconds*10);
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return slot+" "+hour + ":" + minute + " " + seconds ;
+    }
+
+    private int getMinutesSinceMidnight()
+    {
+        return hour*60+minute;
+    }
+
+    /**
+     * Get the minutes since midnight, local time. This is also the sort key.
+     */
+    public int getMinutesSinceMidnightLocalTime()
+    {
+        return localMinutes;
+    }
+
+    /**
+     * Ensure that the number of minutes is in the range 0 - (24*60-1) (inclusive).
+     */
+    private static int clampMinutes(int minutes)
+    {
+        while(minutes < 0)
+        {
+            minutes += 60*24;
+        }
+        // Roll over at midnight
+        minutes %= 24*60;
+        return minutes;
+    }
+
+    @Override
+    public int compareTo(FeedingTime feedingTime)
+    {
+        return localMinutes-feedingTime.localMinutes;
+    }
+
+    public String getFormattedTime()
+    {
+        // Compute the offset from milliseconds to hours and minutes
+        int totalMinutes = getMinutesSinceMidnightLocalTime();
+        int hours = totalMinutes/60;
+        int minutes = totalMinutes%60;
+        return String.format(Locale.getDefault(),"%02d:%02d",hours,minutes);
+    }
+}
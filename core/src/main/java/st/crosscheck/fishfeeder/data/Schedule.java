@@ -0,0 +1,351 @@
+package st.crosscheck.fishfeeder.data;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable schedule of feeding times, as stored in the slots of the feeder.
+ * <p>
+ * Each slot is packed into a single int (hour, minute and tenths of a second, in UTC), and a
+ * bitmask records which slots are in use. This makes finding a free slot a constant time
+ * operation, and comparing two schedules a matter of comparing a few ints.
+ * <p>
+ * As a list, the schedule holds a {@link FeedingTime} for every used slot, in order of local
+ * time of day. The feeding times are created once, so iterating by index allocates nothing, and
+ * a schedule made from another by an edit shares the feeding times of the slots left unchanged,
+ * so only the changed slots get new ones. The offset between UTC and local time is resolved once, when the
+ * schedule is created; if the offset changes, use {@link #atOffset(int)} to get a schedule
+ * sorted for the new offset.
+ *
+ * @author Erik Berglund
+ */
+public final class Schedule extends AbstractList<FeedingTime> implements RandomAccess
+{
+    // The number of slots on the feeder.
+    public static final int SLOT_COUNT = 18;
+    // A mask with one bit set for every slot.
+    private static final int ALL_SLOTS = (1 << SLOT_COUNT) - 1;
+    public static final Schedule EMPTY = new Schedule(new int[SLOT_COUNT], 0, 0);
+
+    // The packed record of each slot, only meaningful if the slot is occupied.
+    private final int[] records;
+    // Bit n is set if slot n is in use.
+    private final int occupied;
+    // The offset, in minutes, between UTC and local time the schedule is sorted for.
+    private final int offsetMinutes;
+    // The feeding times of the occupied slots, in order of local time.
+    private final FeedingTime[] ordered;
+
+    private Schedule(int[] records, int occupied, int offsetMinutes)
+    {
+        this(records, occupied, offsetMinutes, null);
+    }
+
+    /**
+     * @param previous a schedule with the same offset whose feeding times are reused for the
+     *                 slots that hold the same record, or null.
+     */
+    private Schedule(int[] records, int occupied, int offsetMinutes, Schedule previous)
+    {
+        this.records = records;
+        this.occupied = occupied;
+        this.offsetMinutes = offsetMinutes;
+        this.ordered = order(records, occupied, offsetMinutes, previous);
+    }
+
+    /**
+     * Pack a slot record.
+     */
+    public static int pack(int hour, int minute, int deciSeconds)
+    {
+        return (hour & 0xFF) << 16 | (minute & 0xFF) << 8 | (deciSeconds & 0xFF);
+    }
+
+    public static int unpackHour(int record)
+    {
+        return (record >>> 16) & 0xFF;
+    }
+
+    public static int unpackMinute(int record)
+    {
+        return (record >>> 8) & 0xFF;
+    }
+
+    public static int unpackDeciSeconds(int record)
+    {
+        return record & 0xFF;
+    }
+
+    /**
+     * Create a schedule from the raw slot records sent by the feeder, three bytes per slot.
+     * Slots with an hour or minute out of range are unused.
+     * @param slots the number of slots in the data.
+     */
+    public static Schedule fromRecords(byte[] data, int offset, int slots)
+    {
+        int[] records = new int[SLOT_COUNT];
+        int occupied = 0;
+        for(int slot = 0;slot<Math.min(slots, SLOT_COUNT);slot++)
+        {
+            int hour = data[offset + slot*3] & 0xFF;
+            int minute = data[offset + slot*3 + 1] & 0xFF;
+            int deciSeconds = data[offset + slot*3 + 2] & 0xFF;
+            if(hour < 24 && minute < 60)
+            {
+                records[slot] = pack(hour, minute, deciSeconds);
+                occupied |= 1 << slot;
+            }
+        }
+        return new Schedule(records, occupied, FeedingTime.getCurrentOffsetMinutes());
+    }
+
+    /**
+     * Write the slots as the raw records sent by the feeder, the reverse of
+     * {@link #fromRecords(byte[], int, int)}. Unused slots are written as 255:255.
+     * @param data room for three bytes per slot, starting at the offset.
+     */
+    public void toRecords(byte[] data, int offset)
+    {
+        for(int slot = 0;slot<SLOT_COUNT;slot++)
+        {
+            int record = isOccupied(slot) ? records[slot] : pack(0xFF, 0xFF, 0);
+            data[offset + slot*3] = (byte)unpackHour(record);
+            data[offset + slot*3 + 1] = (byte)unpackMinute(record);
+            data[offset + slot*3 + 2] = (byte)unpackDeciSeconds(record);
+        }
+    }
+
+    /**
+     * Create a schedule from a list of feeding times, each in its own slot.
+     */
+    public static Schedule of(List<FeedingTime> feedingTimes)
+    {
+        int[] records = new int[SLOT_COUNT];
+        int occupied = 0;
+        for(FeedingTime ft:feedingTimes)
+        {
+            checkSlot(ft.slot);
+            records[ft.slot] = pack(ft.hour, ft.minute, ft.getDeciSeconds());
+            occupied |= 1 << ft.slot;
+        }
+        return new Schedule(records, occupied, FeedingTime.getCurrentOffsetMinutes());
+    }
+
+    private static void checkSlot(int slot)
+    {
+        if(slot < 0 || slot >= SLOT_COUNT)
+        {
+            throw new IllegalArgumentException("Slot " + slot + " is not between 0 and " + (SLOT_COUNT - 1) + ".");
+        }
+    }
+
+    /**
+     * Get the feeding times of the occupied slots, sorted by local time of day.
+     * @param previous a schedule with the same offset to take the feeding times of unchanged slots from, or null.
+     */
+    private static FeedingTime[] order(int[] records, int occupied, int offsetMinutes, Schedule previous)
+    {
+        FeedingTime[] result = new FeedingTime[Integer.bitCount(occupied)];
+        int[] keys = new int[result.length];
+        int count = 0;
+        for(int slot = 0;slot<SLOT_COUNT;slot++)
+        {
+            if((occupied & (1 << slot)) != 0)
+            {
+                int record = records[slot];
+                FeedingTime ft = previous != null ? previous.getUnchanged(slot, record) : null;
+                if(ft == null)
+                {
+                    ft = new FeedingTime(slot, unpackHour(record), unpackMinute(record), (float)(unpackDeciSeconds(record) / 10.0), true, offsetMinutes);
+                }
+                int key = ft.getMinutesSinceMidnightLocalTime();
+                // Insertion sort, there are never more than a handful of slots
+                int x = count;
+                while(x > 0 && keys[x - 1] > key)
+                {
+                    keys[x] = keys[x - 1];
+                    result[x] = result[x - 1];
+                    x--;
+                }
+                keys[x] = key;
+                result[x] = ft;
+                count++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the feeding time of a slot, if the slot holds a given record.
+     * @return the feeding time, or null if the slot is unused or holds another record.
+     */
+    private FeedingTime getUnchanged(int slot, int record)
+    {
+        if(!isOccupied(slot) || records[slot] != record)
+        {
+            return null;
+        }
+        for(FeedingTime ft:ordered)
+        {
+            if(ft.slot == slot)
+            {
+                return ft;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the offset between UTC and local time the schedule is sorted for.
+     */
+    public int getOffsetMinutes()
+    {
+        return offsetMinutes;
+    }
+
+    /**
+     * Get this schedule sorted and displayed for another offset between UTC and local time.
+     * @return this schedule if the offset is the same, otherwise a new schedule.
+     */
+    public Schedule atOffset(int offsetMinutes)
+    {
+        if(offsetMinutes == this.offsetMinutes)
+        {
+            return this;
+        }
+        return new Schedule(records, occupied, offsetMinutes);
+    }
+
+    /**
+     * Get the schedule that results from applying an edit to this one.
+     */
+    public Schedule apply(ScheduleEdit edit)
+    {
+        FeedingTime ft = edit.getFeedingTime();
+        checkSlot(ft.slot);
+        int[] newRecords = records.clone();
+        int newOccupied;
+        if(edit.getType() == ScheduleEdit.Type.CREATE)
+        {
+            newRecords[ft.slot] = pack(ft.hour, ft.minute, ft.getDeciSeconds());
+            newOccupied = occupied | (1 << ft.slot);
+        }
+        else
+        {
+            newOccupied = occupied & ~(1 << ft.slot);
+        }
+        return new Schedule(newRecords, newOccupied, offsetMinutes, this);
+    }
+
+    /**
+     * Get the schedule that results from replacing some of the slots of this one.
+     * @param data the new records, four bytes each: slot, hour, minute and tenths of a second.
+     *             A slot with an hour or minute out of range becomes unused.
+     * @param count the number of records.
+     * @return this schedule if count is 0, otherwise a new schedule.
+     */
+    public Schedule withRecords(byte[] data, int offset, int count)
+    {
+        if(count == 0)
+        {
+            return this;
+        }
+        int[] newRecords = records.clone();
+        int newOccupied = occupied;
+        for(int x = 0;x<count;x++)
+        {
+            int slot = data[offset + x*4] & 0xFF;
+            int hour = data[offset + x*4 + 1] & 0xFF;
+            int minute = data[offset + x*4 + 2] & 0xFF;
+            int deciSeconds = data[offset + x*4 + 3] & 0xFF;
+            if(slot >= SLOT_COUNT)
+            {
+                continue;
+            }
+            if(hour < 24 && minute < 60)
+            {
+                newRecords[slot] = pack(hour, minute, deciSeconds);
+                newOccupied |= 1 << slot;
+            }
+            else
+            {
+                newOccupied &= ~(1 << slot);
+            }
+        }
+        return new Schedule(newRecords, newOccupied, offsetMinutes, this);
+    }
+
+    @Override
+    public FeedingTime get(int index)
+    {
+        return ordered[index];
+    }
+
+    @Override
+    public int size()
+    {
+        return ordered.length;
+    }
+
+    public boolean isOccupied(int slot)
+    {
+        return (occupied & (1 << slot)) != 0;
+    }
+
+    /**
+     * Get the packed record of a slot, see {@link #pack(int, int, int)}.
+     */
+    public int getRecord(int slot)
+    {
+        return records[slot];
+    }
+
+    /**
+     * Get the bitmask of occupied slots, bit n is set if slot n is in use.
+     */
+    public int getOccupied()
+    {
+        return occupied;
+    }
+
+    /**
+     * Find an unused slot.
+     * @return the lowest unused slot, or -1 if all slots are in use.
+     */
+    public int getFreeSlot()
+    {
+        int free = ~occupied & ALL_SLOTS;
+        return free == 0 ? -1 : Integer.numberOfTrailingZeros(free);
+    }
+
+    /**
+     * Check if another schedule has exactly the same slots, e.g. to detect if anything has changed.
+     */
+    public boolean isSameAs(Schedule other)
+    {
+        if(other == this)
+        {
+            return true;
+        }
+        if(other == null || other.occupied != occupied)
+        {
+            return false;
+        }
+        for(int slot = 0;slot<SLOT_COUNT;slot++)
+        {
+            if((occupied & (1 << slot)) != 0 && records[slot] != other.records[slot])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(ordered);
+    }
+}
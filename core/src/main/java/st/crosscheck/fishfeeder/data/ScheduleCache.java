@@ -0,0 +1,82 @@
+package st.crosscheck.fishfeeder.data;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/**
+ * Keeps the last known schedule of each feeder on disk, so that it can be shown at once when
+ * the app starts, before the feeder has been reached.
+ * <p>
+ * Each feeder has its own file holding the raw slot records, exactly as the feeder sends them.
+ * A file is replaced as a whole, so a reader never sees a partly written schedule.
+ *
+ * @author Erik Berglund
+ */
+public class ScheduleCache
+{
+    // The number of bytes in a cached schedule.
+    private static final int SIZE = Schedule.SLOT_COUNT * 3;
+    private final File directory;
+
+    /**
+     * @param directory the directory to keep the files in.
+     */
+    public ScheduleCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Read the schedule last stored for a feeder.
+     * @return the schedule, or null if none is stored or it could not be read.
+     */
+    public Schedule load(InetSocketAddress feeder)
+    {
+        File file = getFile(feeder);
+        if(file.length() != SIZE)
+        {
+            return null;
+        }
+        byte[] data = new byte[SIZE];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file)))
+        {
+            in.readFully(data);
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        return Schedule.fromRecords(data, 0, Schedule.SLOT_COUNT);
+    }
+
+    /**
+     * Store the schedule of a feeder, replacing the one stored before.
+     */
+    public void store(InetSocketAddress feeder, Schedule schedule) throws IOException
+    {
+        byte[] data = new byte[SIZE];
+        schedule.toRecords(data, 0);
+        File file = getFile(feeder);
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp))
+        {
+            out.write(data);
+        }
+        if(!temp.renameTo(file))
+        {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private File getFile(InetSocketAddress feeder)
+    {
+        String host = feeder.getAddress() != null ? feeder.getAddress().getHostAddress() : feeder.getHostString();
+        // IPv6 addresses contain colons, which are not allowed in file names everywhere
+        return new File(directory, "schedule-" + host.replace(':', '_') + "-" + feeder.getPort());
+    }
+}
@@ -0,0 +1,133 @@
+package st.crosscheck.fishfeeder.data;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.FrameDecoder;
+
+/**
+ * A single change to the schedule on the feeder, either the creation or the deletion of
+ * a feeding time. Edits can be sent one at a time or together as a batch.
+ *
+ * @author Erik Berglund
+ */
+public class ScheduleEdit
+{
+    public enum Type
+    {
+        CREATE,
+        DELETE
+    }
+
+    private final Type type;
+    private final FeedingTime feedingTime;
+
+    private ScheduleEdit(Type type, FeedingTime feedingTime)
+    {
+        this.type = type;
+        this.feedingTime = feedingTime;
+    }
+
+    /**
+     * Create an edit that stores the feeding time in its slot on the feeder.
+     */
+    public static ScheduleEdit create(FeedingTime ft)
+    {
+        return new ScheduleEdit(Type.CREATE, ft);
+    }
+
+    /**
+     * Create an edit that clears the slot of the feeding time on the feeder.
+     */
+    public static ScheduleEdit delete(FeedingTime ft)
+    {
+        return new ScheduleEdit(Type.DELETE, ft);
+    }
+
+    /**
+     * Recreate an edit from the message that performs it.
+     * @return the edit, or null if the message is not a create or delete of a slot the feeder has.
+     */
+    public static ScheduleEdit fromFrame(byte[] frame)
+    {
+        FrameDecoder decoder = new FrameDecoder();
+        try
+        {
+            if(!decoder.decode(ByteBuffer.wrap(frame)))
+            {
+                return null;
+            }
+        }
+        catch (ProtocolException e)
+        {
+            return null;
+        }
+        if(decoder.getSlot() >= Schedule.SLOT_COUNT)
+        {
+            return null;
+        }
+        switch(decoder.getCommand())
+        {
+            case FrameCodec.CREATE:
+                return create(new FeedingTime(decoder.getSlot(), decoder.getHour(), decoder.getMinute(), (float)(decoder.getDeciSeconds() / 10.0), true));
+            case FrameCodec.DELETE:
+                // Only the slot matters for a deletion
+                return delete(new FeedingTime(decoder.getSlot(), 0, 0, 0, true));
+            default:
+                return null;
+        }
+    }
+
+    public Type getType()
+    {
+        return type;
+    }
+
+    public FeedingTime getFeedingTime()
+    {
+        return feedingTime;
+    }
+
+    /**
+     * Get the message that performs this edit on the feeder.
+     */
+    public byte[] toFrame()
+    {
+        if(type == Type.CREATE)
+        {
+            return FrameCodec.newCreateFrame(feedingTime.slot, feedingTime.hour, feedingTime.minute, feedingTime.getDeciSeconds());
+        }
+        else
+        {
+            return FrameCodec.newDeleteFrame(feedingTime.slot);
+        }
+    }
+
+    /**
+     * Check if the result of this edit can be seen in a state read back from the feeder.
+     */
+    public boolean isReflectedIn(List<FeedingTime> state)
+    {
+        for(FeedingTime ft:state)
+        {
+            if(ft.slot == feedingTime.slot)
+            {
+                return type == Type.CREATE
+                        && ft.hour == feedingTime.hour
+                        && ft.minute == feedingTime.minute
+                        && ft.getDeciSeconds() == feedingTime.getDeciSeconds();
+            }
+        }
+        return type == Type.DELETE;
+    }
+
+    @NonNull
+    @Override
+    public String toString()
+    {
+        return type + " " + feedingTime;
+    }
+}
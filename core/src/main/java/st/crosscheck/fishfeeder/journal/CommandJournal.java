@@ -0,0 +1,301 @@
+package st.crosscheck.fishfeeder.journal;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An append-only file of commands that could not be sent to the feeder, so that they can be
+ * sent once it can be reached again, even if the app has been restarted in between.
+ * <p>
+ * Each command is appended as a record holding a sequence number, the time it was written, the
+ * feeder it is meant for and the frame to send. When a command has been handled, an
+ * acknowledgement record with its sequence number is appended.
+ * Writes are not forced to disk until {@link #sync()} is called, so several records can share
+ * the cost of one sync. Once every command has been acknowledged the file is truncated, and if
+ * it grows too large it is rewritten to hold only the commands still pending.
+ *
+ * @author Erik Berglund
+ */
+public class CommandJournal implements Closeable
+{
+    private static final byte APPEND = 'E';
+    private static final byte ACKNOWLEDGE = 'K';
+    // Rewrite the file once it holds this many records for commands already handled.
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    /**
+     * A command waiting to be sent.
+     */
+    public static class Entry
+    {
+        private final long sequence;
+        private final long time;
+        private final InetSocketAddress feeder;
+        private final byte[] frame;
+
+        Entry(long sequence, long time, InetSocketAddress feeder, byte[] frame)
+        {
+            this.sequence = sequence;
+            this.time = time;
+            this.feeder = feeder;
+            this.frame = frame;
+        }
+
+        public long getSequence()
+        {
+            return sequence;
+        }
+
+        /**
+         * Get the time the command was written, in milliseconds since the epoch, 0 if unknown.
+         */
+        public long getTime()
+        {
+            return time;
+        }
+
+        /**
+         * Get the feeder the command is meant for, null if unknown.
+         */
+        public InetSocketAddress getFeeder()
+        {
+            return feeder;
+        }
+
+        public byte[] getFrame()
+        {
+            return frame.clone();
+        }
+    }
+
+    private final File file;
+    private FileOutputStream out;
+    private final List<Entry> pending = new ArrayList<>();
+    private long nextSequence = 1;
+    // The number of records in the file that belong to commands already handled.
+    private int obsoleteRecords;
+    // The number of obsolete records at which to rewrite the file, raised after a failed rewrite.
+    private int compactAt = COMPACTION_THRESHOLD;
+    private boolean dirty;
+
+    /**
+     * Open a journal, creating the file if it does not exist.
+     * A record that was only partly written, e.g. because the app was killed, is discarded.
+     */
+    public CommandJournal(File file) throws IOException
+    {
+        this.file = file;
+        long validLength = load();
+        out = new FileOutputStream(file, true);
+        if(out.getChannel().size() > validLength)
+        {
+            out.getChannel().truncate(validLength);
+        }
+    }
+
+    /**
+     * Read the records in the file.
+     * @return the length of the file up to the end of the last complete record.
+     */
+    private long load() throws IOException
+    {
+        if(!file.exists())
+        {
+            return 0;
+        }
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file))))
+        {
+            while(true)
+            {
+                byte type = in.readByte();
+                long sequence = in.readLong();
+                if(type == APPEND)
+                {
+                    long time = in.readLong();
+                    byte[] host = new byte[in.readUnsignedByte()];
+                    in.readFully(host);
+                    int port = in.readUnsignedShort();
+                    byte[] frame = new byte[in.readUnsignedByte()];
+                    in.readFully(frame);
+                    InetSocketAddress feeder = host.length == 0 ? null : new InetSocketAddress(InetAddress.getByAddress(host), port);
+                    pending.add(new Entry(sequence, time, feeder, frame));
+                    validLength += 1 + 8 + 8 + 1 + host.length + 2 + 1 + frame.length;
+                }
+                else if(type == ACKNOWLEDGE)
+                {
+                    removePending(sequence);
+                    obsoleteRecords += 2;
+                    validLength += 1 + 8;
+                }
+                else
+                {
+                    // Garbage, keep what we have so far
+                    break;
+                }
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+        }
+        catch (EOFException e)
+        {
+            // End of the file, possibly in the middle of a record
+        }
+        return validLength;
+    }
+
+    /**
+     * Add a command to the end of the journal.
+     * @param feeder the feeder the command is meant for, which must be resolved.
+     * @return the entry for the command.
+     */
+    public synchronized Entry append(InetSocketAddress feeder, byte[] frame) throws IOException
+    {
+        if(feeder.getAddress() == null)
+        {
+            throw new IOException("Unresolved feeder address " + feeder);
+        }
+        Entry entry = new Entry(nextSequence++, System.currentTimeMillis(), feeder, frame.clone());
+        out.write(toRecord(entry));
+        pending.add(entry);
+        dirty = true;
+        return entry;
+    }
+
+    /**
+     * Record that a command has been handled and no longer needs to be sent.
+     */
+    public synchronized void acknowledge(Entry entry) throws IOException
+    {
+        if(!removePending(entry.sequence))
+        {
+            return;
+        }
+        if(pending.isEmpty())
+        {
+            // Nothing left to send, start over with an empty file
+            out.getChannel().truncate(0);
+            obsoleteRecords = 0;
+            compactAt = COMPACTION_THRESHOLD;
+            dirty = true;
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(1 + 8);
+        record.put(ACKNOWLEDGE).putLong(entry.sequence);
+        out.write(record.array());
+        obsoleteRecords += 2;
+        dirty = true;
+        if(obsoleteRecords >= compactAt)
+        {
+            compact();
+        }
+    }
+
+    /**
+     * Get the commands not yet handled, in the order they were appended.
+     */
+    public synchronized List<Entry> getPending()
+    {
+        return new ArrayList<>(pending);
+    }
+
+    public synchronized boolean isEmpty()
+    {
+        return pending.isEmpty();
+    }
+
+    /**
+     * Force all records written so far to disk.
+     */
+    public synchronized void sync() throws IOException
+    {
+        if(dirty)
+        {
+            out.getChannel().force(false);
+            dirty = false;
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException
+    {
+        sync();
+        out.close();
+    }
+
+    private static byte[] toRecord(Entry entry)
+    {
+        byte[] host = entry.feeder == null ? new byte[0] : entry.feeder.getAddress().getAddress();
+        int port = entry.feeder == null ? 0 : entry.feeder.getPort();
+        ByteBuffer record = ByteBuffer.allocate(1 + 8 + 8 + 1 + host.length + 2 + 1 + entry.frame.length);
+        record.put(APPEND).putLong(entry.sequence).putLong(entry.time)
+                .put((byte)host.length).put(host).putShort((short)port)
+                .put((byte)entry.frame.length).put(entry.frame);
+        return record.array();
+    }
+
+    private boolean removePending(long sequence)
+    {
+        for(int x = 0;x<pending.size();x++)
+        {
+            if(pending.get(x).sequence == sequence)
+            {
+                pending.remove(x);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrite the file with only the pending commands. If that fails the file is kept as it
+     * is, and the next attempt waits until as many records again have become obsolete.
+     */
+    private void compact() throws IOException
+    {
+        File temp = new File(file.getPath() + ".tmp");
+        boolean replaced = false;
+        try
+        {
+            try (FileOutputStream tempOut = new FileOutputStream(temp))
+            {
+                for(Entry entry:pending)
+                {
+                    tempOut.write(toRecord(entry));
+                }
+                tempOut.getChannel().force(false);
+            }
+            out.close();
+            replaced = temp.renameTo(file);
+            out = new FileOutputStream(file, true);
+            if(!replaced)
+            {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+        finally
+        {
+            if(replaced)
+            {
+                obsoleteRecords = 0;
+                compactAt = COMPACTION_THRESHOLD;
+                dirty = false;
+            }
+            else
+            {
+                temp.delete();
+                compactAt = obsoleteRecords + COMPACTION_THRESHOLD;
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package st.crosscheck.fishfeeder.metrics;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for the work a client does talking to the feeder, to see
+ * where the time goes and how often things fail.
+ * <p>
+ * Recording only updates atomic counters, so it allocates nothing and can be left on.
+ * Latencies are kept in microseconds.
+ *
+ * @author Erik Berglund
+ */
+public class ClientMetrics
+{
+    /**
+     * The phases of talking to the feeder that are timed.
+     */
+    public enum Phase
+    {
+        // From the start of the client until the first beacon was received.
+        DISCOVERY,
+        // Opening a connection.
+        CONNECT,
+        // Writing a command.
+        TRANSMIT,
+        // Reading the state sent in reply.
+        READ_STATE,
+        // A whole command, from connecting until the reply has been read, retries included.
+        EXCHANGE
+    }
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Phase.values().length];
+    private final AtomicLong commands = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsReused = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong beacons = new AtomicLong();
+
+    public ClientMetrics()
+    {
+        for(int x = 0;x<histograms.length;x++)
+        {
+            histograms[x] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record the time a phase took.
+     * @param startNanos when the phase started, from {@link System#nanoTime()}.
+     */
+    public void record(Phase phase, long startNanos)
+    {
+        histograms[phase.ordinal()].record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    /**
+     * Record the outcome of a command.
+     */
+    public void recordCommand(boolean success)
+    {
+        commands.incrementAndGet();
+        if(!success)
+        {
+            failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Record that a connection was needed.
+     * @param reused true if an open connection could be used, false if a new one was opened.
+     */
+    public void recordConnection(boolean reused)
+    {
+        (reused ? connectionsReused : connectionsOpened).incrementAndGet();
+    }
+
+    public void recordRetry()
+    {
+        retries.incrementAndGet();
+    }
+
+    public void recordBytesSent(int count)
+    {
+        bytesSent.addAndGet(count);
+    }
+
+    public void recordBytesReceived(int count)
+    {
+        bytesReceived.addAndGet(count);
+    }
+
+    public void recordBeacon()
+    {
+        beacons.incrementAndGet();
+    }
+
+    public LatencyHistogram getHistogram(Phase phase)
+    {
+        return histograms[phase.ordinal()];
+    }
+
+    public long getCommands()
+    {
+        return commands.get();
+    }
+
+    public long getFailures()
+    {
+        return failures.get();
+    }
+
+    public long getConnectionsOpened()
+    {
+        return connectionsOpened.get();
+    }
+
+    public long getConnectionsReused()
+    {
+        return connectionsReused.get();
+    }
+
+    public long getRetries()
+    {
+        return retries.get();
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    public long getBeacons()
+    {
+        return beacons.get();
+    }
+
+    /**
+     * Start counting from zero again.
+     */
+    public void reset()
+    {
+        for(LatencyHistogram histogram:histograms)
+        {
+            histogram.reset();
+        }
+        commands.set(0);
+        failures.set(0);
+        connectionsOpened.set(0);
+        connectionsReused.set(0);
+        retries.set(0);
+        bytesSent.set(0);
+        bytesReceived.set(0);
+        beacons.set(0);
+    }
+
+    /**
+     * Describe the metrics in a few lines of text, latencies in milliseconds.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format(Locale.ROOT, "commands %d, failed %d, retried %d%n", getCommands(), getFailures(), getRetries()));
+        text.append(String.format(Locale.ROOT, "connections opened %d, reused %d%n", getConnectionsOpened(), getConnectionsReused()));
+        text.append(String.format(Locale.ROOT, "bytes sent %d, received %d%n", getBytesSent(), getBytesReceived()));
+        text.append(String.format(Locale.ROOT, "beacons %d%n", getBeacons()));
+        for(Phase phase:Phase.values())
+        {
+            LatencyHistogram histogram = getHistogram(phase);
+            text.append(String.format(Locale.ROOT, "%n%s (%d)%np50 %.1f  p99 %.1f  max %.1f ms%n",
+                    phase.name().toLowerCase(Locale.ROOT).replace('_', ' '), histogram.getCount(),
+                    histogram.getValueAtPercentile(50) / 1000.0, histogram.getValueAtPercentile(99) / 1000.0,
+                    histogram.getMax() / 1000.0));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,140 @@
+package st.crosscheck.fishfeeder.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values, typically latencies in microseconds, from which
+ * percentiles can be read.
+ * <p>
+ * Values below 32 are counted exactly. Above that, every power of two is split into 32 equal
+ * buckets, so a value is known to within about 3%, the way HdrHistogram does it. The buckets
+ * are allocated up front and recording a value only increments counters, so it allocates
+ * nothing and can be done from any number of threads at once.
+ *
+ * @author Erik Berglund
+ */
+public class LatencyHistogram
+{
+    // The number of bits of precision kept for each value.
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // Values are clamped to below 2^MAX_EXPONENT, about 12 days in microseconds.
+    private static final int MAX_EXPONENT = 40;
+    private static final long MAX_VALUE = (1L << MAX_EXPONENT) - 1;
+    private static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Add a value. Negative values are counted as 0.
+     */
+    public void record(long value)
+    {
+        long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+        counts.incrementAndGet(getBucket(clamped));
+        count.incrementAndGet();
+        sum.addAndGet(clamped);
+        long current;
+        while(clamped > (current = max.get()) && !max.compareAndSet(current, clamped))
+        {
+            // Another thread raised the maximum, try again
+        }
+    }
+
+    /**
+     * Get the number of values recorded.
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Get the mean of the values recorded, 0 if there are none.
+     */
+    public double getMean()
+    {
+        long n = count.get();
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * Get the value that a given share of the recorded values are at or below.
+     * @param percentile the share, from 0 to 100, e.g. 99.9.
+     * @return the highest value in the bucket the percentile falls in, never more than the
+     * largest value recorded; 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        // Counts may change while we read them, so go by what the buckets add up to
+        long[] snapshot = new long[BUCKET_COUNT];
+        long total = 0;
+        for(int x = 0;x<BUCKET_COUNT;x++)
+        {
+            snapshot[x] = counts.get(x);
+            total += snapshot[x];
+        }
+        if(total == 0)
+        {
+            return 0;
+        }
+        long rank = Math.max(1, (long)Math.ceil(Math.min(percentile, 100) / 100 * total));
+        long seen = 0;
+        for(int x = 0;x<BUCKET_COUNT;x++)
+        {
+            seen += snapshot[x];
+            if(seen >= rank)
+            {
+                return Math.min(getHighestValue(x), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Forget all values recorded. Values recorded at the same time may be partly kept.
+     */
+    public void reset()
+    {
+        for(int x = 0;x<BUCKET_COUNT;x++)
+        {
+            counts.set(x, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    private static int getBucket(long value)
+    {
+        if(value < SUB_BUCKET_COUNT)
+        {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int)(value >>> shift) - SUB_BUCKET_COUNT;
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long getHighestValue(int bucket)
+    {
+        if(bucket < SUB_BUCKET_COUNT)
+        {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int subBucket = (bucket - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long lowest = (long)(SUB_BUCKET_COUNT + subBucket) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,139 @@
+package st.crosscheck.fishfeeder.net;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The announcement a feeder multicasts on the network.
+ * <p>
+ * The payload is the TCP port the feeder accepts commands on, optionally followed by options
+ * separated by spaces, each of the form key=value, e.g. "5051 sync=1". Older feeders send only
+ * the port. Options that are not understood are ignored. The options are:
+ * <ul>
+ *     <li>sync=1: the feeder understands the 'v' command, see
+ *     {@link st.crosscheck.fishfeeder.protocol.FrameCodec}.</li>
+ *     <li>epoch=N: the epoch of the state of the feeder, picked anew each time it starts.</li>
+ *     <li>ver=N: the current version of the state of the feeder. A feeder that sends this also
+ *     sends a beacon as soon as its state changes, so clients can follow the changes without
+ *     asking for the state.</li>
+ * </ul>
+ *
+ * @author Erik Berglund
+ */
+public final class Beacon
+{
+    private final InetSocketAddress address;
+    private final Map<String, String> options;
+
+    private Beacon(InetSocketAddress address, Map<String, String> options)
+    {
+        this.address = address;
+        this.options = options;
+    }
+
+    /**
+     * Parse the payload of a beacon.
+     * @param sender the address the beacon came from.
+     * @return the beacon, or null if the payload is not a beacon.
+     */
+    public static Beacon parse(InetAddress sender, String payload)
+    {
+        String[] tokens = payload.trim().split("\\s+");
+        int port;
+        try
+        {
+            port = Integer.parseInt(tokens[0]);
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+        if(port <= 0 || port > 0xFFFF)
+        {
+            return null;
+        }
+        Map<String, String> options = new HashMap<>();
+        for(int x = 1;x<tokens.length;x++)
+        {
+            int separator = tokens[x].indexOf('=');
+            if(separator > 0)
+            {
+                options.put(tokens[x].substring(0, separator), tokens[x].substring(separator + 1));
+            }
+        }
+        return new Beacon(new InetSocketAddress(sender, port), options);
+    }
+
+    /**
+     * Get the address to send commands to.
+     */
+    public InetSocketAddress getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * Get the value of an option.
+     * @return the value, or null if the feeder did not send the option.
+     */
+    public String getOption(String key)
+    {
+        return options.get(key);
+    }
+
+    /**
+     * Check if the feeder understands the SYNC command.
+     */
+    public boolean isSyncSupported()
+    {
+        return "1".equals(options.get("sync"));
+    }
+
+    /**
+     * Get the epoch of the state that the feeder announced, see {@link #getVersion()}.
+     * @return the epoch, or 0 if the feeder did not announce one.
+     */
+    public int getEpoch()
+    {
+        return getNumber("epoch");
+    }
+
+    /**
+     * Get the version of the state that the feeder announced. Versions are only comparable
+     * within the same epoch.
+     * @return the version, or 0 if the feeder did not announce one.
+     */
+    public int getVersion()
+    {
+        return getNumber("ver");
+    }
+
+    /**
+     * Get an option that holds an unsigned 32-bit number.
+     * @return the number, or 0 if the option is missing or not a number.
+     */
+    private int getNumber(String key)
+    {
+        String value = options.get(key);
+        if(value == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return (int)Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return address + " " + options;
+    }
+}
@@ -0,0 +1,87 @@
+package st.crosscheck.fishfeeder.net;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The point in time by which a command must be done, after which it is no longer worth
+ * sending or waiting for. A deadline can also be cancelled, when the command is no longer
+ * needed at all.
+ * <p>
+ * The time allowed for each step of a command, such as connecting or waiting for the reply,
+ * is taken from what remains of its deadline, so the command as a whole never takes longer.
+ *
+ * @author Erik Berglund
+ */
+public final class Deadline
+{
+    private final long expiresAt;
+    private volatile boolean cancelled;
+    private volatile Runnable cancelAction;
+
+    private Deadline(long expiresAt)
+    {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Create a deadline a number of milliseconds from now.
+     */
+    public static Deadline after(long millis)
+    {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Get the time left until the deadline.
+     * @return the time in milliseconds, 0 if the deadline has passed or been cancelled.
+     */
+    public long getRemainingMillis()
+    {
+        if(cancelled)
+        {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    /**
+     * Check if there is no time left, because the deadline has passed or been cancelled.
+     */
+    public boolean isExpired()
+    {
+        return cancelled || expiresAt - System.nanoTime() <= 0;
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    /**
+     * Give up on the command. If it is running, the action set with
+     * {@link #setCancelAction(Runnable)} is run to stop it.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        Runnable action = cancelAction;
+        if(action != null)
+        {
+            action.run();
+        }
+    }
+
+    /**
+     * Set what to do to stop the command if the deadline is cancelled while it runs, e.g. close
+     * its connection. If the deadline has already been cancelled, the action is run at once.
+     * @param action the action, or null once the command is done.
+     */
+    public void setCancelAction(Runnable action)
+    {
+        cancelAction = action;
+        if(action != null && cancelled)
+        {
+            action.run();
+        }
+    }
+}
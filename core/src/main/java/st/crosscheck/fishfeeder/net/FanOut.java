@@ -0,0 +1,181 @@
+package st.crosscheck.fishfeeder.net;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+/**
+ * Sends the same sequence of messages to many feeders at once and collects the outcome for
+ * each of them. The messages for one feeder are sent in order, while all feeders are served
+ * concurrently, so the whole operation takes about as long as the slowest feeder.
+ *
+ * @author Erik Berglund
+ */
+public class FanOut
+{
+    private FanOut()
+    {
+    }
+
+    /**
+     * The outcome for a single feeder.
+     */
+    public static class Result
+    {
+        private final InetSocketAddress address;
+        private byte[] lastReply;
+        private IOException error;
+        private int completed;
+        // The number of messages whose exchange has neither completed nor failed.
+        private int outstanding;
+
+        Result(InetSocketAddress address, int messageCount)
+        {
+            this.address = address;
+            this.outstanding = messageCount;
+        }
+
+        public InetSocketAddress getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * Check if every message was sent and, where a reply was expected, answered in time.
+         */
+        public synchronized boolean isSuccess()
+        {
+            return error == null;
+        }
+
+        /**
+         * Get the first error for this feeder, or null if there was none.
+         */
+        public synchronized IOException getError()
+        {
+            return error;
+        }
+
+        /**
+         * Get the number of messages that completed.
+         */
+        public synchronized int getCompletedCount()
+        {
+            return completed;
+        }
+
+        /**
+         * Get the schedule in the last state dump received from the feeder.
+         * @return the schedule, or null if no state was received.
+         */
+        public synchronized Schedule getSchedule()
+        {
+            if(lastReply == null || lastReply.length == 0)
+            {
+                return null;
+            }
+            StateDecoder decoder = new StateDecoder();
+            decoder.wrap(lastReply, 0, lastReply.length);
+            return decoder.toSchedule();
+        }
+
+        synchronized void completed(byte[] reply)
+        {
+            completed++;
+            outstanding--;
+            if(reply.length > 0)
+            {
+                lastReply = reply;
+            }
+        }
+
+        synchronized void failed(IOException e)
+        {
+            outstanding--;
+            recordError(e);
+        }
+
+        /**
+         * Fail the feeder if any of its exchanges has not finished, keeping what has been collected.
+         */
+        synchronized void timedOut()
+        {
+            if(outstanding > 0)
+            {
+                recordError(new IOException("Timed out talking to " + address));
+            }
+        }
+
+        private void recordError(IOException e)
+        {
+            if(error == null)
+            {
+                error = e;
+            }
+        }
+    }
+
+    /**
+     * Send the frames to each of the feeders and wait for all of them.
+     * @param frames the messages to send to every feeder, in order.
+     * @param timeoutMillis the time allowed for each feeder to handle all frames.
+     * @return the outcome for each feeder, in the order the feeders were given.
+     */
+    public static Map<InetSocketAddress, Result> run(NioEngine engine, Collection<InetSocketAddress> feeders,
+                                                    List<byte[]> frames, long timeoutMillis) throws InterruptedException
+    {
+        Map<InetSocketAddress, Result> results = new LinkedHashMap<>();
+        CountDownLatch done = new CountDownLatch(feeders.size() * frames.size());
+        for(InetSocketAddress address:feeders)
+        {
+            final Result result = new Result(address, frames.size());
+            results.put(address, result);
+            for(byte[] frame:frames)
+            {
+                engine.submit(address, frame, getReplyLength(frame), timeoutMillis, new NioEngine.Callback()
+                {
+                    @Override
+                    public void completed(byte[] reply)
+                    {
+                        result.completed(reply);
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void failed(IOException e)
+                    {
+                        result.failed(e);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        // Every exchange has its own deadline, the extra time only covers scheduling delays.
+        if(!done.await(timeoutMillis + 1000, TimeUnit.MILLISECONDS))
+        {
+            for(Result result:results.values())
+            {
+                result.timedOut();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get the length of the reply the feeder sends to a message.
+     * A manual feeding has no reply, all other commands are answered with the state.
+     */
+    public static int getReplyLength(byte[] frame)
+    {
+        return FrameCodec.getReplyLength(frame[0]);
+    }
+}
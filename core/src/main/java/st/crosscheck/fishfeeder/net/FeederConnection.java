@@ -0,0 +1,285 @@
+package st.crosscheck.fishfeeder.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.metrics.ClientMetrics;
+import st.crosscheck.fishfeeder.protocol.DeltaDecoder;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+/**
+ * A blocking connection to a feeder, kept open between commands if the feeder allows it.
+ * <p>
+ * Older feeders close the connection after every reply. This is noticed the first time a kept
+ * connection turns out to be closed, after which a new connection is opened for every command.
+ * <p>
+ * A connection is used by one thread at a time, but can be aborted from any thread.
+ *
+ * @author Erik Berglund
+ */
+public class FeederConnection implements Closeable
+{
+    // How long to wait for data when probing a reused connection.
+    private static final int STALE_CHECK_TIMEOUT_MS = 1;
+    // How long to wait for a connection, so that a stale cached address fails quickly.
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private final ClientMetrics metrics;
+    private volatile Socket socket;
+    private InputStream in;
+    private OutputStream out;
+    // If true, the connection is kept open between commands.
+    private boolean keepAlive = true;
+    // Set when the feeder has been seen closing the connection after a reply.
+    private boolean peerClosesConnection;
+
+    public FeederConnection(ClientMetrics metrics)
+    {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Make sure there is an open connection to the feeder.
+     * @return true if an existing connection is reused, false if a new one was opened.
+     */
+    public boolean open(InetSocketAddress address, Deadline deadline) throws IOException
+    {
+        if(isAlive())
+        {
+            metrics.recordConnection(true);
+            return true;
+        }
+        close();
+        Socket s = new Socket();
+        long start = System.nanoTime();
+        try
+        {
+            s.connect(address, (int)Math.min(CONNECT_TIMEOUT_MS, getTimeoutMillis(deadline)));
+            metrics.record(ClientMetrics.Phase.CONNECT, start);
+            metrics.recordConnection(false);
+            s.setTcpNoDelay(true);
+            s.setKeepAlive(true);
+            out = s.getOutputStream();
+            in = s.getInputStream();
+        }
+        catch (IOException e)
+        {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        return false;
+    }
+
+    /**
+     * Send frames to the feeder, and give up waiting for the replies when the deadline passes.
+     */
+    public void send(byte[] frames, Deadline deadline) throws IOException
+    {
+        long start = System.nanoTime();
+        out.write(frames);
+        out.flush();
+        metrics.record(ClientMetrics.Phase.TRANSMIT, start);
+        metrics.recordBytesSent(frames.length);
+        socket.setSoTimeout(getTimeoutMillis(deadline));
+    }
+
+    /**
+     * Read a whole state dump.
+     * @throws EOFException if the feeder closes the connection before the whole dump is sent,
+     * as a dump that stops early would make the slots after it look unused.
+     */
+    public void readState(StateDecoder decoder) throws IOException
+    {
+        long start = System.nanoTime();
+        int slots = decoder.read(in);
+        metrics.record(ClientMetrics.Phase.READ_STATE, start);
+        metrics.recordBytesReceived(slots * StateDecoder.RECORD_SIZE);
+        if(slots != StateDecoder.SLOT_COUNT)
+        {
+            throw new EOFException("The feeder closed the connection after " + slots + " of " + StateDecoder.SLOT_COUNT + " slots.");
+        }
+    }
+
+    /**
+     * Send several frames in one go, then read the state dump the feeder sends in reply to
+     * each of them. The connection must be open.
+     * @return the state sent in reply to each frame, in order. Fewer states than frames if the
+     * feeder closed the connection after the last whole reply, in which case the frames
+     * after it were not handled.
+     * @throws EOFException if the feeder closed the connection before the first whole reply.
+     */
+    public List<Schedule> pipeline(List<byte[]> frames, Deadline deadline) throws IOException
+    {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for(byte[] frame:frames)
+        {
+            batch.write(frame, 0, frame.length);
+        }
+        send(batch.toByteArray(), deadline);
+        StateDecoder decoder = new StateDecoder();
+        List<Schedule> replies = new ArrayList<>(frames.size());
+        while(replies.size() < frames.size())
+        {
+            try
+            {
+                readState(decoder);
+            }
+            catch (EOFException e)
+            {
+                if(replies.isEmpty())
+                {
+                    throw e;
+                }
+                // An older feeder, which closes the connection after each reply
+                peerClosesConnection = true;
+                close();
+                break;
+            }
+            replies.add(decoder.toSchedule());
+        }
+        return replies;
+    }
+
+    /**
+     * Read the reply to SYNC.
+     * @return the number of slots in the reply.
+     */
+    public int readDelta(DeltaDecoder decoder) throws IOException
+    {
+        long start = System.nanoTime();
+        int slots = decoder.read(in);
+        metrics.record(ClientMetrics.Phase.READ_STATE, start);
+        metrics.recordBytesReceived(FrameCodec.SYNC_HEADER_SIZE + slots * FrameCodec.SYNC_RECORD_SIZE);
+        return slots;
+    }
+
+    /**
+     * Keep the connection for the next command, or close it if it should not be reused.
+     */
+    public void release() throws IOException
+    {
+        if(!keepAlive || peerClosesConnection)
+        {
+            close();
+        }
+    }
+
+    /**
+     * Enable or disable reuse of the connection between commands.
+     * If the feeder closes the connection after each reply, a new connection is used for
+     * every command regardless of this setting.
+     */
+    public void setKeepAlive(boolean keepAlive) throws IOException
+    {
+        this.keepAlive = keepAlive;
+        if(!keepAlive)
+        {
+            close();
+        }
+    }
+
+    public boolean isKeepAlive()
+    {
+        return keepAlive && !peerClosesConnection;
+    }
+
+    /**
+     * Check if the feeder has been seen closing the connection after a reply.
+     */
+    public boolean isPeerClosingConnection()
+    {
+        return peerClosesConnection;
+    }
+
+    /**
+     * Check if the current connection can be used for another command.
+     * The feeder never sends unsolicited data, so a short read that times out means the
+     * connection is still open, while end-of-stream means the feeder has closed it.
+     */
+    private boolean isAlive()
+    {
+        Socket s = socket;
+        if(s == null || s.isClosed() || !s.isConnected())
+        {
+            return false;
+        }
+        try
+        {
+            s.setSoTimeout(STALE_CHECK_TIMEOUT_MS);
+            try
+            {
+                if(in.read() < 0)
+                {
+                    peerClosesConnection = true;
+                }
+                // Either closed by the feeder, or unexpected data that we can't make sense of
+                return false;
+            }
+            finally
+            {
+                s.setSoTimeout(0);
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Stop a blocking exchange from another thread by closing the connection.
+     */
+    public void abort()
+    {
+        Socket s = socket;
+        if(s != null)
+        {
+            try
+            {
+                s.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing more to do
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        Socket s = socket;
+        if(s != null)
+        {
+            socket = null;
+            s.close();
+        }
+    }
+
+    /**
+     * Get the time left until a deadline as a socket timeout.
+     */
+    private static int getTimeoutMillis(Deadline deadline) throws IOException
+    {
+        long remaining = deadline.getRemainingMillis();
+        if(remaining <= 0)
+        {
+            throw new SocketTimeoutException("The deadline has passed.");
+        }
+        return (int)Math.min(remaining, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,68 @@
+package st.crosscheck.fishfeeder.net;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of every feeder that has announced itself on the network, in the order they
+ * were first seen.
+ *
+ * @author Erik Berglund
+ */
+public class FeederRegistry
+{
+    // The time each feeder was last heard from, in milliseconds since the epoch.
+    private final Map<InetSocketAddress, Long> lastSeen = new LinkedHashMap<>();
+
+    /**
+     * Record that a feeder has announced itself.
+     * @return true if the feeder had not been seen before.
+     */
+    public synchronized boolean announce(InetSocketAddress address)
+    {
+        return lastSeen.put(address, System.currentTimeMillis()) == null;
+    }
+
+    /**
+     * Get all feeders seen so far.
+     */
+    public synchronized List<InetSocketAddress> getFeeders()
+    {
+        return new ArrayList<>(lastSeen.keySet());
+    }
+
+    /**
+     * Get the feeders that have announced themselves within the given time.
+     */
+    public synchronized List<InetSocketAddress> getFeedersSeenWithin(long millis)
+    {
+        long limit = System.currentTimeMillis() - millis;
+        List<InetSocketAddress> result = new ArrayList<>();
+        for(Map.Entry<InetSocketAddress, Long> entry:lastSeen.entrySet())
+        {
+            if(entry.getValue() >= limit)
+            {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the time a feeder was last heard from.
+     * @return the time in milliseconds since the epoch, or -1 if the feeder is unknown.
+     */
+    public synchronized long getLastSeen(InetSocketAddress address)
+    {
+        Long time = lastSeen.get(address);
+        return time == null ? -1 : time;
+    }
+
+    public synchronized int size()
+    {
+        return lastSeen.size();
+    }
+}
@@ -0,0 +1,415 @@
+package st.crosscheck.fishfeeder.net;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Exchanges messages with any number of feeders from a single I/O thread, using non-blocking
+ * channels. Each exchange opens a connection, writes a frame of the feeder protocol, reads the
+ * reply and closes the connection again.
+ * <p>
+ * Exchanges with the same feeder run one at a time, in the order they were submitted, while
+ * exchanges with different feeders run concurrently.
+ *
+ * @author Erik Berglund
+ */
+public class NioEngine implements Closeable
+{
+    /**
+     * Receives the outcome of an exchange. Called on the I/O thread, so it must not block.
+     */
+    public interface Callback
+    {
+        /**
+         * @param reply the complete reply, empty if the command has none.
+         */
+        void completed(byte[] reply);
+
+        /**
+         * @param e the reason, an {@link EOFException} if the feeder closed the connection
+         *          before the reply was complete.
+         */
+        void failed(IOException e);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Exchange> submitted = new ConcurrentLinkedQueue<>();
+    // The exchanges for each feeder; the first one is running, the rest are waiting. Only used on the I/O thread.
+    private final Map<InetSocketAddress, ArrayDeque<Exchange>> exchanges = new HashMap<>();
+    private volatile boolean running = true;
+
+    public NioEngine() throws IOException
+    {
+        selector = Selector.open();
+        thread = new Thread(this::run, NioEngine.class.getSimpleName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Start an exchange without waiting for it to complete.
+     * @param address the address of the feeder.
+     * @param frame the message to send.
+     * @param replyLength the number of bytes in a complete reply, 0 if the command has no reply.
+     *                    A reply that ends before this many bytes fails the exchange.
+     * @param timeoutMillis the time allowed for the exchange, including any time spent waiting
+     *                      for earlier exchanges with the same feeder.
+     */
+    public void submit(InetSocketAddress address, byte[] frame, int replyLength, long timeoutMillis, Callback callback)
+    {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        submitted.add(new Exchange(address, frame, replyLength, deadline, callback));
+        if(running)
+        {
+            selector.wakeup();
+        }
+        else
+        {
+            failSubmitted();
+        }
+    }
+
+    /**
+     * Run an exchange and wait for it to complete.
+     * @return the reply, see {@link Callback#completed(byte[])}.
+     */
+    public byte[] exchange(InetSocketAddress address, byte[] frame, int replyLength, long timeoutMillis) throws IOException
+    {
+        BlockingCallback callback = new BlockingCallback();
+        submit(address, frame, replyLength, timeoutMillis, callback);
+        return callback.await();
+    }
+
+    /**
+     * Stop the I/O thread. Exchanges that have not completed fail.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void run()
+    {
+        try
+        {
+            while(running)
+            {
+                selector.select(getSelectTimeout());
+                startSubmitted();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Exchange exchange = (Exchange)key.attachment();
+                    try
+                    {
+                        if(exchange.handle(key))
+                        {
+                            finish(exchange, null);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        finish(exchange, e);
+                    }
+                }
+                expire();
+            }
+        }
+        catch (IOException e)
+        {
+            running = false;
+        }
+        finally
+        {
+            IOException closed = new IOException("The engine is closed.");
+            for(ArrayDeque<Exchange> queue:exchanges.values())
+            {
+                for(Exchange exchange:queue)
+                {
+                    exchange.close();
+                    exchange.callback.failed(closed);
+                }
+            }
+            exchanges.clear();
+            failSubmitted();
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing more to do
+            }
+        }
+    }
+
+    private void failSubmitted()
+    {
+        Exchange exchange;
+        while((exchange = submitted.poll()) != null)
+        {
+            exchange.callback.failed(new IOException("The engine is closed."));
+        }
+    }
+
+    /**
+     * Get how long to wait for I/O before the next deadline passes.
+     * @return the time in milliseconds, 0 to wait until woken up.
+     */
+    private long getSelectTimeout()
+    {
+        long earliest = Long.MAX_VALUE;
+        for(ArrayDeque<Exchange> queue:exchanges.values())
+        {
+            for(Exchange exchange:queue)
+            {
+                earliest = Math.min(earliest, exchange.deadline);
+            }
+        }
+        if(earliest == Long.MAX_VALUE)
+        {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(earliest - System.nanoTime()));
+    }
+
+    private void startSubmitted()
+    {
+        Exchange exchange;
+        while((exchange = submitted.poll()) != null)
+        {
+            ArrayDeque<Exchange> queue = exchanges.get(exchange.address);
+            if(queue == null)
+            {
+                queue = new ArrayDeque<>();
+                exchanges.put(exchange.address, queue);
+            }
+            queue.add(exchange);
+            if(queue.size() == 1)
+            {
+                start(exchange);
+            }
+        }
+    }
+
+    private void start(Exchange exchange)
+    {
+        try
+        {
+            exchange.start(selector);
+        }
+        catch (IOException e)
+        {
+            finish(exchange, e);
+        }
+    }
+
+    /**
+     * Fail all exchanges whose deadline has passed, running or waiting.
+     */
+    private void expire()
+    {
+        long now = System.nanoTime();
+        List<Exchange> expired = new ArrayList<>();
+        for(ArrayDeque<Exchange> queue:exchanges.values())
+        {
+            for(Exchange exchange:queue)
+            {
+                if(now - exchange.deadline >= 0)
+                {
+                    expired.add(exchange);
+                }
+            }
+        }
+        for(Exchange exchange:expired)
+        {
+            finish(exchange, new IOException("Timed out talking to " + exchange.address));
+        }
+    }
+
+    /**
+     * Complete an exchange and start the next one with the same feeder.
+     * @param e the reason the exchange failed, or null if it succeeded.
+     */
+    private void finish(Exchange exchange, IOException e)
+    {
+        exchange.close();
+        ArrayDeque<Exchange> queue = exchanges.get(exchange.address);
+        boolean wasRunning = queue.peekFirst() == exchange;
+        queue.remove(exchange);
+        if(e == null)
+        {
+            exchange.callback.completed(exchange.getReply());
+        }
+        else
+        {
+            exchange.callback.failed(e);
+        }
+        if(queue.isEmpty())
+        {
+            exchanges.remove(exchange.address);
+        }
+        else if(wasRunning)
+        {
+            start(queue.peekFirst());
+        }
+    }
+
+    /**
+     * A single message sent to a feeder and the reply to it.
+     */
+    private static class Exchange
+    {
+        private final InetSocketAddress address;
+        private final ByteBuffer out;
+        private final ByteBuffer in;
+        private final long deadline;
+        private final Callback callback;
+        private SocketChannel channel;
+
+        Exchange(InetSocketAddress address, byte[] frame, int replyLength, long deadline, Callback callback)
+        {
+            this.address = address;
+            this.out = ByteBuffer.wrap(frame);
+            this.in = ByteBuffer.allocate(replyLength);
+            this.deadline = deadline;
+            this.callback = callback;
+        }
+
+        void start(Selector selector) throws IOException
+        {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if(channel.connect(address))
+            {
+                channel.register(selector, SelectionKey.OP_WRITE, this);
+            }
+            else
+            {
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        /**
+         * Make progress on the exchange.
+         * @return true if the exchange is complete.
+         */
+        boolean handle(SelectionKey key) throws IOException
+        {
+            if(key.isConnectable() && channel.finishConnect())
+            {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if(key.isValid() && key.isWritable())
+            {
+                channel.write(out);
+                if(!out.hasRemaining())
+                {
+                    if(!in.hasRemaining())
+                    {
+                        // No reply expected
+                        return true;
+                    }
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+            if(key.isValid() && key.isReadable())
+            {
+                int count = channel.read(in);
+                if(count < 0 && in.hasRemaining())
+                {
+                    // Like the blocking path, a truncated state must not be taken for the whole state
+                    throw new EOFException("The feeder closed the connection after " + in.position() + " of " + in.capacity() + " bytes.");
+                }
+                return !in.hasRemaining();
+            }
+            return false;
+        }
+
+        byte[] getReply()
+        {
+            byte[] reply = new byte[in.position()];
+            System.arraycopy(in.array(), 0, reply, 0, reply.length);
+            return reply;
+        }
+
+        void close()
+        {
+            if(channel != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    // Nothing more to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Lets a caller wait for the outcome of an exchange.
+     */
+    private static class BlockingCallback implements Callback
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private byte[] reply;
+        private IOException error;
+
+        @Override
+        public void completed(byte[] reply)
+        {
+            this.reply = reply;
+            done.countDown();
+        }
+
+        @Override
+        public void failed(IOException e)
+        {
+            this.error = e;
+            done.countDown();
+        }
+
+        byte[] await() throws IOException
+        {
+            try
+            {
+                done.await();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the feeder.", e);
+            }
+            if(error != null)
+            {
+                throw error;
+            }
+            return reply;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import st.crosscheck.fishfeeder.data.Schedule;
+
+/**
+ * Decodes the reply to a SYNC command: the epoch and current version of the state of the
+ * feeder and the slots changed since the version the client had. See {@link FrameCodec} for the format.
+ * <p>
+ * The reply is read into a buffer that is reused between reads. A decoder is not thread safe.
+ *
+ * @author Erik Berglund
+ */
+public class DeltaDecoder
+{
+    private final byte[] buffer = new byte[FrameCodec.MAX_SYNC_REPLY_SIZE];
+    private int epoch;
+    private int version;
+    private int count;
+
+    /**
+     * Read one reply from the stream, and nothing beyond it.
+     * @return the number of slots in the reply, 0 if nothing has changed.
+     * @throws ProtocolException if the reply is not a reply to SYNC.
+     * @throws EOFException if the stream ends before the reply is complete.
+     */
+    public int read(InputStream in) throws IOException
+    {
+        readFully(in, 0, FrameCodec.SYNC_HEADER_SIZE);
+        if(buffer[0] != FrameCodec.SYNC_REPLY)
+        {
+            throw new ProtocolException("Not a reply to sync: " + buffer[0]);
+        }
+        epoch = getInt(1);
+        version = getInt(5);
+        count = buffer[9] & 0xFF;
+        if(count > StateDecoder.SLOT_COUNT)
+        {
+            throw new ProtocolException("Too many slots in reply to sync: " + count);
+        }
+        readFully(in, FrameCodec.SYNC_HEADER_SIZE, count * FrameCodec.SYNC_RECORD_SIZE);
+        return count;
+    }
+
+    private int getInt(int offset)
+    {
+        return (buffer[offset] & 0xFF) << 24 | (buffer[offset + 1] & 0xFF) << 16 | (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+
+    private void readFully(InputStream in, int offset, int length) throws IOException
+    {
+        int done = 0;
+        while(done < length)
+        {
+            int read = in.read(buffer, offset + done, length - done);
+            if(read < 0)
+            {
+                throw new EOFException("The reply to sync ended early.");
+            }
+            done += read;
+        }
+    }
+
+    /**
+     * Get the epoch of the state, which the feeder picks anew each time it starts.
+     */
+    public int getEpoch()
+    {
+        return epoch;
+    }
+
+    /**
+     * Get the version of the state the feeder is at.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Get the number of slots in the last reply read.
+     */
+    public int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Check if the last reply holds every slot, and so does not depend on an earlier state.
+     */
+    public boolean isComplete()
+    {
+        return count == StateDecoder.SLOT_COUNT;
+    }
+
+    /**
+     * Apply the changed slots to the schedule they were changed from.
+     * @return the schedule itself if nothing has changed.
+     */
+    public Schedule applyTo(Schedule schedule)
+    {
+        return schedule.withRecords(buffer, FrameCodec.SYNC_HEADER_SIZE, count);
+    }
+}
@@ -0,0 +1,187 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import st.crosscheck.fishfeeder.data.Schedule;
+
+/**
+ * Encodes the commands sent to the feeder, and the state dump it sends back.
+ * <p>
+ * A command is a single letter followed by its arguments, one byte each:
+ * <ul>
+ *     <li>'u': send the state.</li>
+ *     <li>'c' slot hour minute deciSeconds: store a feeding time (UTC) in a slot.</li>
+ *     <li>'d' slot: clear a slot.</li>
+ *     <li>'m' deciSeconds: run the feeder now.</li>
+ *     <li>'v' epoch version (four bytes each, big-endian): send the slots changed since a
+ *     version of the state, see below.</li>
+ * </ul>
+ * The feeder replies to every command but 'm' and 'v' with the state dump, see {@link StateDecoder}.
+ * <p>
+ * Only feeders that announce "sync=1" in their beacon understand 'v'. Such a feeder numbers
+ * the versions of its state, and picks a new epoch each time it starts, since it does not keep
+ * its versions across a restart. It replies to 'v' with 's', its epoch and current version
+ * (four bytes each), the number of slots that follow (one byte), and each of those slots as
+ * four bytes: slot, hour, minute and deciSeconds. The slots are the ones changed since the
+ * version in the request. When the epoch in the request is not the current one, or the version
+ * is 0 or unknown to the feeder, all slots are sent. No slots means that nothing has changed.
+ * See {@link DeltaDecoder}.
+ * <p>
+ * The put methods write into a buffer supplied by the caller and allocate nothing, so a
+ * buffer can be reused for any number of frames. The new methods create a frame of its own,
+ * for when one is needed as an array.
+ *
+ * @author Erik Berglund
+ */
+public final class FrameCodec
+{
+    public static final byte UPDATE = 'u';
+    public static final byte CREATE = 'c';
+    public static final byte DELETE = 'd';
+    public static final byte MANUAL = 'm';
+    public static final byte SYNC = 'v';
+    // The first byte of the reply to SYNC.
+    public static final byte SYNC_REPLY = 's';
+    // The number of bytes in the reply to SYNC before the slots.
+    public static final int SYNC_HEADER_SIZE = 1 + 4 + 4 + 1;
+    // The number of bytes per slot in the reply to SYNC.
+    public static final int SYNC_RECORD_SIZE = 4;
+    // The length of the longest reply to SYNC, with every slot.
+    public static final int MAX_SYNC_REPLY_SIZE = SYNC_HEADER_SIZE + StateDecoder.SLOT_COUNT * SYNC_RECORD_SIZE;
+    // The length of the longest frame, the one for SYNC.
+    public static final int MAX_FRAME_SIZE = 9;
+    // A slot record for an unused slot.
+    private static final byte UNUSED = (byte)0xFF;
+
+    private FrameCodec()
+    {
+    }
+
+    /**
+     * Get the length of a frame, command included.
+     * @throws ProtocolException if the command is unknown.
+     */
+    public static int getFrameLength(int command) throws ProtocolException
+    {
+        switch(command)
+        {
+            case UPDATE:
+                return 1;
+            case CREATE:
+                return 5;
+            case SYNC:
+                return 9;
+            case DELETE:
+            case MANUAL:
+                return 2;
+            default:
+                throw new ProtocolException("Unknown command " + command);
+        }
+    }
+
+    /**
+     * Get the length of the reply to a command, 0 if it has none.
+     * The reply to SYNC varies in length, for it the longest possible length is returned.
+     */
+    public static int getReplyLength(int command)
+    {
+        switch(command)
+        {
+            case MANUAL:
+                return 0;
+            case SYNC:
+                return MAX_SYNC_REPLY_SIZE;
+            default:
+                return StateDecoder.STATE_SIZE;
+        }
+    }
+
+    public static void putUpdate(ByteBuffer out)
+    {
+        out.put(UPDATE);
+    }
+
+    public static void putCreate(ByteBuffer out, int slot, int hour, int minute, int deciSeconds)
+    {
+        out.put(CREATE).put((byte)slot).put((byte)hour).put((byte)minute).put((byte)deciSeconds);
+    }
+
+    public static void putDelete(ByteBuffer out, int slot)
+    {
+        out.put(DELETE).put((byte)slot);
+    }
+
+    public static void putManual(ByteBuffer out, int deciSeconds)
+    {
+        out.put(MANUAL).put((byte)deciSeconds);
+    }
+
+    public static void putSync(ByteBuffer out, int epoch, int version)
+    {
+        out.put(SYNC).putInt(epoch).putInt(version);
+    }
+
+    /**
+     * Write the start of the reply to SYNC, to be followed by the slots with
+     * {@link #putSyncRecord(ByteBuffer, int, int, int, int)}.
+     */
+    public static void putSyncReply(ByteBuffer out, int epoch, int version, int slotCount)
+    {
+        out.put(SYNC_REPLY).putInt(epoch).putInt(version).put((byte)slotCount);
+    }
+
+    public static void putSyncRecord(ByteBuffer out, int slot, int hour, int minute, int deciSeconds)
+    {
+        out.put((byte)slot).put((byte)hour).put((byte)minute).put((byte)deciSeconds);
+    }
+
+    /**
+     * Write the state dump for a schedule, three bytes per slot, as the feeder sends it.
+     */
+    public static void putState(ByteBuffer out, Schedule schedule)
+    {
+        for(int slot = 0;slot<StateDecoder.SLOT_COUNT;slot++)
+        {
+            if(schedule.isOccupied(slot))
+            {
+                int record = schedule.getRecord(slot);
+                out.put((byte)Schedule.unpackHour(record))
+                        .put((byte)Schedule.unpackMinute(record))
+                        .put((byte)Schedule.unpackDeciSeconds(record));
+            }
+            else
+            {
+                out.put(UNUSED).put(UNUSED).put((byte)0);
+            }
+        }
+    }
+
+    public static byte[] newUpdateFrame()
+    {
+        return new byte[]{UPDATE};
+    }
+
+    public static byte[] newCreateFrame(int slot, int hour, int minute, int deciSeconds)
+    {
+        byte[] frame = new byte[5];
+        putCreate(ByteBuffer.wrap(frame), slot, hour, minute, deciSeconds);
+        return frame;
+    }
+
+    public static byte[] newDeleteFrame(int slot)
+    {
+        return new byte[]{DELETE, (byte)slot};
+    }
+
+    public static byte[] newManualFrame(int deciSeconds)
+    {
+        return new byte[]{MANUAL, (byte)deciSeconds};
+    }
+
+    public static byte[] newSyncFrame(int epoch, int version)
+    {
+        byte[] frame = new byte[9];
+        putSync(ByteBuffer.wrap(frame), epoch, version);
+        return frame;
+    }
+}
@@ -0,0 +1,115 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes the commands sent to the feeder, as the feeder does, from data that may arrive a
+ * few bytes at a time. See {@link FrameCodec} for the format.
+ * <p>
+ * The bytes of a frame are kept in a buffer that is reused from frame to frame, so decoding
+ * allocates nothing. A decoder is not thread safe.
+ *
+ * @author Erik Berglund
+ */
+public class FrameDecoder
+{
+    private final byte[] frame = new byte[FrameCodec.MAX_FRAME_SIZE];
+    private int length;
+    // The length of the frame being decoded, 0 until its command has been read.
+    private int expected;
+
+    /**
+     * Consume bytes until a whole frame has been decoded or the data runs out.
+     * Bytes after the end of the frame are left in the buffer.
+     * @return true if a frame is complete, its fields can then be read until the next call.
+     * @throws ProtocolException if the command is unknown.
+     */
+    public boolean decode(ByteBuffer in) throws ProtocolException
+    {
+        if(expected != 0 && length == expected)
+        {
+            // Start on the next frame
+            length = 0;
+            expected = 0;
+        }
+        while(in.hasRemaining())
+        {
+            if(expected == 0)
+            {
+                byte command = in.get();
+                expected = FrameCodec.getFrameLength(command);
+                frame[length++] = command;
+            }
+            int count = Math.min(expected - length, in.remaining());
+            in.get(frame, length, count);
+            length += count;
+            if(length == expected)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the command of the frame, one of the command constants in {@link FrameCodec}.
+     */
+    public byte getCommand()
+    {
+        return frame[0];
+    }
+
+    /**
+     * Get the slot of a CREATE or DELETE frame.
+     */
+    public int getSlot()
+    {
+        return frame[1] & 0xFF;
+    }
+
+    /**
+     * Get the hour (UTC) of a CREATE frame.
+     */
+    public int getHour()
+    {
+        return frame[2] & 0xFF;
+    }
+
+    /**
+     * Get the minute of a CREATE frame.
+     */
+    public int getMinute()
+    {
+        return frame[3] & 0xFF;
+    }
+
+    /**
+     * Get the epoch of the state in a SYNC frame.
+     */
+    public int getEpoch()
+    {
+        return getInt(1);
+    }
+
+    /**
+     * Get the version of the state in a SYNC frame.
+     */
+    public int getVersion()
+    {
+        return getInt(5);
+    }
+
+    private int getInt(int offset)
+    {
+        return (frame[offset] & 0xFF) << 24 | (frame[offset + 1] & 0xFF) << 16 | (frame[offset + 2] & 0xFF) << 8 | (frame[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Get the duration, in tenths of a second, of a CREATE or MANUAL frame.
+     */
+    public int getDeciSeconds()
+    {
+        return frame[getCommand() == FrameCodec.MANUAL ? 1 : 4] & 0xFF;
+    }
+}
@@ -0,0 +1,126 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import st.crosscheck.fishfeeder.data.Schedule;
+
+/**
+ * Decodes the state dump the feeder sends in reply to a command.
+ * The dump consists of one three-byte record per slot: the hour and minute (UTC) and the
+ * duration in tenths of a second. A slot with an hour or minute out of range is unused.
+ * <p>
+ * The whole dump is read into a buffer that is reused between reads, and the records are
+ * read directly from the buffer, so decoding allocates nothing until a {@link Schedule} is
+ * created from it. A decoder is not thread safe. See {@link FrameCodec} for encoding.
+ *
+ * @author Erik Berglund
+ */
+public class StateDecoder
+{
+    // The number of slots in a state dump.
+    public static final int SLOT_COUNT = Schedule.SLOT_COUNT;
+    // The number of bytes per slot.
+    public static final int RECORD_SIZE = 3;
+    // The number of bytes in a state dump.
+    public static final int STATE_SIZE = SLOT_COUNT * RECORD_SIZE;
+    private final byte[] buffer = new byte[STATE_SIZE];
+    private int length;
+
+    /**
+     * Read one state dump from the stream.
+     * Reading stops when all slots have been read or the stream ends, so that nothing beyond
+     * the dump is consumed.
+     * @return the number of complete slots read.
+     */
+    public int read(InputStream in) throws IOException
+    {
+        length = 0;
+        while(length < buffer.length)
+        {
+            int count = in.read(buffer, length, buffer.length - length);
+            if(count < 0)
+            {
+                break;
+            }
+            length += count;
+        }
+        return getSlotCount();
+    }
+
+    /**
+     * Use a state dump that has already been received.
+     * @return the number of complete slots.
+     */
+    public int wrap(byte[] data, int offset, int count)
+    {
+        length = Math.min(count, buffer.length);
+        System.arraycopy(data, offset, buffer, 0, length);
+        return getSlotCount();
+    }
+
+    /**
+     * Consume bytes of a state dump that may arrive a few bytes at a time, e.g. from a
+     * non-blocking channel. Once a dump is complete, the next call starts on a new one.
+     * Bytes after the end of the dump are left in the buffer.
+     * @return true if the dump is complete.
+     */
+    public boolean decode(ByteBuffer in)
+    {
+        if(length == buffer.length)
+        {
+            length = 0;
+        }
+        int count = Math.min(buffer.length - length, in.remaining());
+        in.get(buffer, length, count);
+        length += count;
+        return length == buffer.length;
+    }
+
+    /**
+     * Forget any partly decoded dump, e.g. when the connection it came from was closed.
+     */
+    public void reset()
+    {
+        length = 0;
+    }
+
+    /**
+     * Get the number of complete slots in the last dump read.
+     */
+    public int getSlotCount()
+    {
+        return length / RECORD_SIZE;
+    }
+
+    public int getHour(int slot)
+    {
+        return buffer[slot * RECORD_SIZE] & 0xFF;
+    }
+
+    public int getMinute(int slot)
+    {
+        return buffer[slot * RECORD_SIZE + 1] & 0xFF;
+    }
+
+    public int getDeciSeconds(int slot)
+    {
+        return buffer[slot * RECORD_SIZE + 2] & 0xFF;
+    }
+
+    /**
+     * Check if a slot holds a feeding time.
+     */
+    public boolean isUsed(int slot)
+    {
+        return getHour(slot) < 24 && getMinute(slot) < 60;
+    }
+
+    /**
+     * Create a schedule from the last dump read.
+     */
+    public Schedule toSchedule()
+    {
+        return Schedule.fromRecords(buffer, 0, getSlotCount());
+    }
+}
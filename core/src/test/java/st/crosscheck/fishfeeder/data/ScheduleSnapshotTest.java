@@ -0,0 +1,117 @@
+package st.crosscheck.fishfeeder.data;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Publishes schedules from one thread while others read them, the way the client publishes
+ * the schedule to the UI, and checks that no reader ever sees a torn or unsorted schedule.
+ */
+public class ScheduleSnapshotTest
+{
+    private static final int READERS = 4;
+    private static final int GENERATIONS = 20000;
+
+    @Test
+    public void readersOnlySeeWholeSortedSnapshots() throws InterruptedException
+    {
+        AtomicReference<Schedule> published = new AtomicReference<>(Schedule.EMPTY);
+        AtomicReference<String> failure = new AtomicReference<>();
+        AtomicInteger checked = new AtomicInteger();
+        CountDownLatch writerDone = new CountDownLatch(1);
+        List<Thread> readers = new ArrayList<>();
+        for(int x = 0;x<READERS;x++)
+        {
+            Thread reader = new Thread(() -> {
+                while(writerDone.getCount() > 0 && failure.get() == null)
+                {
+                    String problem = check(published.get());
+                    if(problem != null)
+                    {
+                        failure.compareAndSet(null, problem);
+                    }
+                    checked.incrementAndGet();
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        Schedule schedule = Schedule.EMPTY;
+        for(int generation = 1;generation<=GENERATIONS && failure.get() == null;generation++)
+        {
+            // Two edits that belong together: slots 0 and 1 always hold the same generation
+            schedule = schedule.apply(ScheduleEdit.create(tag(0, generation)))
+                    .apply(ScheduleEdit.create(tag(1, generation)));
+            // Move another slot around, so the order of the feeding times keeps changing
+            int slot = 2 + generation % (Schedule.SLOT_COUNT - 2);
+            FeedingTime moved = new FeedingTime(slot, (generation * 7) % 24, (generation * 13) % 60, 1, true, 0);
+            schedule = schedule.apply(generation % 5 == 0 ? ScheduleEdit.delete(moved) : ScheduleEdit.create(moved));
+            // Now and then the time zone changes and the schedule is sorted anew
+            published.set(schedule.atOffset(generation % 3 == 0 ? 120 : -300));
+        }
+        writerDone.countDown();
+        for(Thread reader:readers)
+        {
+            reader.join(TimeUnit.SECONDS.toMillis(10));
+        }
+        assertNull(failure.get(), failure.get());
+        assertTrue(checked.get() > 0);
+    }
+
+    /**
+     * The feeding time of one of the two slots that are always changed together.
+     */
+    private static FeedingTime tag(int slot, int generation)
+    {
+        int minutes = generation % (24 * 60);
+        return new FeedingTime(slot, minutes / 60, minutes % 60, (generation % 250) / 10f, true, 0);
+    }
+
+    /**
+     * Check that a schedule is consistent with itself and sorted.
+     * @return a description of the problem, or null if there is none.
+     */
+    private static String check(Schedule schedule)
+    {
+        if(schedule.size() != Integer.bitCount(schedule.getOccupied()))
+        {
+            return "Size " + schedule.size() + " does not match the occupied slots in " + schedule;
+        }
+        if(schedule.isOccupied(0) != schedule.isOccupied(1))
+        {
+            return "Only one of slots 0 and 1 is in use in " + schedule;
+        }
+        if(schedule.isOccupied(0) && schedule.getRecord(0) != schedule.getRecord(1))
+        {
+            return "Slots 0 and 1 are from different generations in " + schedule;
+        }
+        int previous = -1;
+        for(FeedingTime ft:schedule)
+        {
+            if(ft.getOffsetMinutes() != schedule.getOffsetMinutes())
+            {
+                return "Feeding time sorted for another offset in " + schedule;
+            }
+            if(!schedule.isOccupied(ft.slot) || schedule.getRecord(ft.slot) != Schedule.pack(ft.hour, ft.minute, ft.getDeciSeconds()))
+            {
+                return "Feeding time " + ft + " does not match its slot in " + schedule;
+            }
+            if(ft.getMinutesSinceMidnightLocalTime() < previous)
+            {
+                return "Not sorted: " + schedule;
+            }
+            previous = ft.getMinutesSinceMidnightLocalTime();
+        }
+        return null;
+    }
+}
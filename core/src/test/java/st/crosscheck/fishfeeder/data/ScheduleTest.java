@@ -0,0 +1,74 @@
+package st.crosscheck.fishfeeder.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+
+public class ScheduleTest
+{
+    private static FeedingTime at(int slot, int hour)
+    {
+        return new FeedingTime(slot, hour, 0, 1, true, 0);
+    }
+
+    private static FeedingTime inSlot(Schedule schedule, int slot)
+    {
+        for(FeedingTime ft:schedule)
+        {
+            if(ft.slot == slot)
+            {
+                return ft;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void slotOutOfRangeIsRejected()
+    {
+        FeedingTime outOfRange = at(Schedule.SLOT_COUNT, 8);
+        assertThrows(IllegalArgumentException.class, () -> Schedule.of(Collections.singletonList(outOfRange)));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.EMPTY.apply(ScheduleEdit.create(outOfRange)));
+        assertThrows(IllegalArgumentException.class, () -> Schedule.EMPTY.apply(ScheduleEdit.delete(at(-1, 8))));
+    }
+
+    @Test
+    public void frameWithSlotOutOfRangeIsNotAnEdit()
+    {
+        assertNull(ScheduleEdit.fromFrame(FrameCodec.newCreateFrame(Schedule.SLOT_COUNT, 8, 0, 10)));
+        assertNull(ScheduleEdit.fromFrame(FrameCodec.newDeleteFrame(Schedule.SLOT_COUNT)));
+        assertNotNull(ScheduleEdit.fromFrame(FrameCodec.newDeleteFrame(Schedule.SLOT_COUNT - 1)));
+    }
+
+    @Test
+    public void editSharesTheFeedingTimesOfUnchangedSlots()
+    {
+        Schedule before = Schedule.of(Arrays.asList(at(0, 8), at(1, 12), at(2, 18)));
+        Schedule after = before.apply(ScheduleEdit.create(at(1, 13)));
+        assertSame(inSlot(before, 0), inSlot(after, 0));
+        assertSame(inSlot(before, 2), inSlot(after, 2));
+        assertNotSame(inSlot(before, 1), inSlot(after, 1));
+        assertEquals(13, inSlot(after, 1).hour);
+        // Sorted for another offset, every feeding time is new
+        assertNotSame(inSlot(before, 0), inSlot(before.atOffset(60), 0));
+    }
+
+    @Test
+    public void localTimeIsStoredInUtc()
+    {
+        FeedingTime ft = new FeedingTime(3, 0, 30, 1, false, 60);
+        assertEquals(23, ft.hour);
+        assertEquals(30, ft.minute);
+        assertEquals(30, ft.getMinutesSinceMidnightLocalTime());
+    }
+}
@@ -0,0 +1,144 @@
+package st.crosscheck.fishfeeder.journal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+
+public class CommandJournalTest
+{
+    private static final InetSocketAddress FEEDER = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5051);
+    private File file;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile("commands", ".journal");
+        assertTrue(file.delete());
+    }
+
+    @After
+    public void tearDown()
+    {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void entriesKeepTheirFeederAndTimeAcrossReopen() throws IOException
+    {
+        byte[] frame = FrameCodec.newCreateFrame(3, 12, 30, 20);
+        long before = System.currentTimeMillis();
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            journal.append(FEEDER, frame);
+            CommandJournal.Entry handled = journal.append(FEEDER, FrameCodec.newDeleteFrame(4));
+            journal.acknowledge(handled);
+        }
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            List<CommandJournal.Entry> pending = journal.getPending();
+            assertEquals(1, pending.size());
+            CommandJournal.Entry entry = pending.get(0);
+            assertEquals(FEEDER, entry.getFeeder());
+            assertTrue(entry.getTime() >= before && entry.getTime() <= System.currentTimeMillis());
+            assertArrayEquals(frame, entry.getFrame());
+        }
+    }
+
+    @Test
+    public void partlyWrittenRecordIsDiscarded() throws IOException
+    {
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            journal.append(FEEDER, FrameCodec.newDeleteFrame(1));
+            journal.append(FEEDER, FrameCodec.newDeleteFrame(2));
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true))
+        {
+            out.getChannel().truncate(out.getChannel().size() - 1);
+        }
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            assertEquals(1, journal.getPending().size());
+            journal.append(FEEDER, FrameCodec.newDeleteFrame(3));
+        }
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            assertEquals(2, journal.getPending().size());
+            assertArrayEquals(FrameCodec.newDeleteFrame(3), journal.getPending().get(1).getFrame());
+        }
+    }
+
+    @Test
+    public void compactionKeepsFeeders() throws IOException
+    {
+        InetSocketAddress other = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, 0, 7}), 6000);
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            journal.append(other, FrameCodec.newDeleteFrame(9));
+            // Enough handled commands to make the journal rewrite itself
+            for(int x = 0;x<100;x++)
+            {
+                journal.acknowledge(journal.append(FEEDER, FrameCodec.newDeleteFrame(x % 18)));
+            }
+        }
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            assertEquals(1, journal.getPending().size());
+            assertEquals(other, journal.getPending().get(0).getFeeder());
+        }
+    }
+
+    @Test
+    public void failedCompactionIsNotRetriedOnEveryAcknowledgement() throws IOException
+    {
+        // A directory in the way of the temporary file makes the rewrite fail
+        File temp = new File(file.getPath() + ".tmp");
+        assertTrue(temp.mkdir());
+        File blocker = new File(temp, "blocker");
+        assertTrue(blocker.createNewFile());
+        int failures = 0;
+        try (CommandJournal journal = new CommandJournal(file))
+        {
+            CommandJournal.Entry kept = journal.append(FEEDER, FrameCodec.newDeleteFrame(9));
+            for(int x = 0;x<40;x++)
+            {
+                CommandJournal.Entry handled = journal.append(FEEDER, FrameCodec.newDeleteFrame(x % 18));
+                try
+                {
+                    journal.acknowledge(handled);
+                }
+                catch (IOException e)
+                {
+                    failures++;
+                }
+            }
+            assertEquals(1, failures);
+            long grown = file.length();
+
+            // Once the rewrite can succeed, it is done when enough records are obsolete again
+            assertTrue(blocker.delete());
+            assertTrue(temp.delete());
+            for(int x = 0;x<40;x++)
+            {
+                journal.acknowledge(journal.append(FEEDER, FrameCodec.newDeleteFrame(x % 18)));
+            }
+            assertTrue(file.length() < grown);
+            assertEquals(1, journal.getPending().size());
+            assertEquals(kept.getSequence(), journal.getPending().get(0).getSequence());
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package st.crosscheck.fishfeeder.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+public class BeaconTest
+{
+    @Test
+    public void optionsAreParsed()
+    {
+        Beacon beacon = Beacon.parse(InetAddress.getLoopbackAddress(), "5051 sync=1 epoch=4294967295 ver=12 later=x\n");
+        assertEquals(5051, beacon.getAddress().getPort());
+        assertTrue(beacon.isSyncSupported());
+        // Epochs and versions are unsigned
+        assertEquals(-1, beacon.getEpoch());
+        assertEquals(12, beacon.getVersion());
+        assertEquals("x", beacon.getOption("later"));
+    }
+
+    @Test
+    public void olderFeedersSendOnlyThePort()
+    {
+        Beacon beacon = Beacon.parse(InetAddress.getLoopbackAddress(), "5051");
+        assertFalse(beacon.isSyncSupported());
+        assertEquals(0, beacon.getEpoch());
+        assertEquals(0, beacon.getVersion());
+    }
+
+    @Test
+    public void otherPayloadsAreNotBeacons()
+    {
+        assertNull(Beacon.parse(InetAddress.getLoopbackAddress(), "hello"));
+        assertNull(Beacon.parse(InetAddress.getLoopbackAddress(), "70000"));
+    }
+}
@@ -0,0 +1,67 @@
+package st.crosscheck.fishfeeder.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+
+public class FanOutTest
+{
+    private static final InetSocketAddress ANSWERING = new InetSocketAddress("127.0.0.1", 5051);
+    private static final InetSocketAddress SILENT = new InetSocketAddress("127.0.0.1", 5052);
+
+    /**
+     * Answers the feeder at ANSWERING at once, and never completes the exchanges with any other.
+     */
+    private static class StalledEngine extends NioEngine
+    {
+        StalledEngine() throws IOException
+        {
+        }
+
+        @Override
+        public void submit(InetSocketAddress address, byte[] frame, int replyLength, long timeoutMillis, Callback callback)
+        {
+            if(address.equals(ANSWERING))
+            {
+                byte[] reply = new byte[replyLength];
+                Arrays.fill(reply, (byte)0xFF);
+                callback.completed(reply);
+            }
+        }
+    }
+
+    @Test
+    public void timeoutOnlyFailsFeedersThatDidNotFinish() throws Exception
+    {
+        List<byte[]> frames = Arrays.asList(FrameCodec.newDeleteFrame(1), FrameCodec.newUpdateFrame());
+        try (NioEngine engine = new StalledEngine())
+        {
+            Map<InetSocketAddress, FanOut.Result> results = FanOut.run(engine, Arrays.asList(ANSWERING, SILENT), frames, 100);
+
+            FanOut.Result answered = results.get(ANSWERING);
+            assertTrue(answered.isSuccess());
+            assertNull(answered.getError());
+            assertEquals(2, answered.getCompletedCount());
+            assertNotNull(answered.getSchedule());
+            assertTrue(answered.getSchedule().isEmpty());
+
+            FanOut.Result silent = results.get(SILENT);
+            assertFalse(silent.isSuccess());
+            assertNotNull(silent.getError());
+            assertEquals(0, silent.getCompletedCount());
+            assertNull(silent.getSchedule());
+        }
+    }
+}
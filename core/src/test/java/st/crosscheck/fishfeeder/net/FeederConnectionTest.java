@@ -0,0 +1,182 @@
+package st.crosscheck.fishfeeder.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.metrics.ClientMetrics;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+public class FeederConnectionTest
+{
+    private ServerSocket server;
+    private InetSocketAddress address;
+    private final FeederConnection connection = new FeederConnection(new ClientMetrics());
+
+    @Before
+    public void setUp() throws IOException
+    {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        connection.close();
+        server.close();
+    }
+
+    /**
+     * Answer one command with the first bytes of a state dump, then close the connection.
+     */
+    private void replyWith(int length)
+    {
+        Thread feeder = new Thread(() -> {
+            try (Socket socket = server.accept())
+            {
+                InputStream in = socket.getInputStream();
+                in.read();
+                byte[] state = new byte[StateDecoder.STATE_SIZE];
+                Arrays.fill(state, (byte)0xFF);
+                socket.getOutputStream().write(state, 0, length);
+            }
+            catch (IOException e)
+            {
+                // The test fails on the client side
+            }
+        });
+        feeder.setDaemon(true);
+        feeder.start();
+    }
+
+    /**
+     * Read a number of one byte frames, then answer the first of them with whole state dumps
+     * that hold the index of the reply as the hour of slot 0, and close the connection.
+     */
+    private void replyToFrames(int frames, int replies)
+    {
+        Thread feeder = new Thread(() -> {
+            try (Socket socket = server.accept())
+            {
+                InputStream in = socket.getInputStream();
+                for(int x = 0;x<frames;x++)
+                {
+                    in.read();
+                }
+                for(int x = 0;x<replies;x++)
+                {
+                    byte[] state = new byte[StateDecoder.STATE_SIZE];
+                    Arrays.fill(state, (byte)0xFF);
+                    state[0] = (byte)x;
+                    state[1] = 0;
+                    state[2] = 10;
+                    socket.getOutputStream().write(state);
+                }
+            }
+            catch (IOException e)
+            {
+                // The test fails on the client side
+            }
+        });
+        feeder.setDaemon(true);
+        feeder.start();
+    }
+
+    private List<Schedule> pipeline(int frames) throws IOException
+    {
+        Deadline deadline = Deadline.after(5000);
+        connection.open(address, deadline);
+        return connection.pipeline(Collections.nCopies(frames, FrameCodec.newUpdateFrame()), deadline);
+    }
+
+    private void exchange() throws IOException
+    {
+        Deadline deadline = Deadline.after(5000);
+        assertFalse(connection.open(address, deadline));
+        connection.send(FrameCodec.newUpdateFrame(), deadline);
+        connection.readState(new StateDecoder());
+    }
+
+    @Test
+    public void wholeDumpIsRead() throws IOException
+    {
+        replyWith(StateDecoder.STATE_SIZE);
+        StateDecoder decoder = new StateDecoder();
+        Deadline deadline = Deadline.after(5000);
+        connection.open(address, deadline);
+        connection.send(FrameCodec.newUpdateFrame(), deadline);
+        connection.readState(decoder);
+        assertEquals(StateDecoder.SLOT_COUNT, decoder.getSlotCount());
+    }
+
+    @Test
+    public void dumpCutOffInASlotFails()
+    {
+        replyWith(20);
+        assertThrows(EOFException.class, this::exchange);
+    }
+
+    @Test
+    public void dumpCutOffBetweenSlotsFails()
+    {
+        // Whole slots, which would otherwise make the rest look unused
+        replyWith(6 * StateDecoder.RECORD_SIZE);
+        assertThrows(EOFException.class, this::exchange);
+    }
+
+    @Test
+    public void noReplyOnNewConnectionFails()
+    {
+        replyWith(0);
+        assertThrows(EOFException.class, this::exchange);
+    }
+
+    @Test
+    public void pipelineReturnsTheReplyToEachFrame() throws IOException
+    {
+        replyToFrames(3, 3);
+        List<Schedule> replies = pipeline(3);
+        assertEquals(3, replies.size());
+        for(int x = 0;x<3;x++)
+        {
+            assertEquals(x, Schedule.unpackHour(replies.get(x).getRecord(0)));
+        }
+        assertFalse(connection.isPeerClosingConnection());
+    }
+
+    @Test
+    public void pipelineStopsAtTheLastWholeReply() throws IOException
+    {
+        replyToFrames(3, 1);
+        List<Schedule> replies = pipeline(3);
+        assertEquals(1, replies.size());
+        assertEquals(0, Schedule.unpackHour(replies.get(0).getRecord(0)));
+        assertTrue(connection.isPeerClosingConnection());
+    }
+
+    @Test
+    public void pipelineWithoutAnyReplyFails()
+    {
+        replyToFrames(3, 0);
+        assertThrows(EOFException.class, () -> pipeline(3));
+    }
+}
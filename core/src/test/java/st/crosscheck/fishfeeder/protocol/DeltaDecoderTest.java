@@ -0,0 +1,122 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.data.FeedingTime;
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
+
+public class DeltaDecoderTest
+{
+    private static final Schedule BEFORE = Schedule.EMPTY
+            .apply(ScheduleEdit.create(new FeedingTime(2, 8, 0, 1, true, 0)))
+            .apply(ScheduleEdit.create(new FeedingTime(4, 18, 0, 1, true, 0)));
+
+    /**
+     * A reply that moves slot 2, clears slot 4 and fills slot 17.
+     */
+    private static byte[] encodeReply(int epoch, int version)
+    {
+        ByteBuffer out = ByteBuffer.allocate(FrameCodec.MAX_SYNC_REPLY_SIZE);
+        FrameCodec.putSyncReply(out, epoch, version, 3);
+        FrameCodec.putSyncRecord(out, 2, 9, 15, 20);
+        FrameCodec.putSyncRecord(out, 4, 0xFF, 0xFF, 0);
+        FrameCodec.putSyncRecord(out, 17, 23, 59, 255);
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    @Test
+    public void deltaRoundTrips() throws IOException
+    {
+        DeltaDecoder decoder = new DeltaDecoder();
+        assertEquals(3, decoder.read(new TrickleInputStream(encodeReply(0x12345678, 0xFEDCBA98))));
+        assertEquals(0x12345678, decoder.getEpoch());
+        assertEquals(0xFEDCBA98, decoder.getVersion());
+        assertEquals(3, decoder.getCount());
+        assertFalse(decoder.isComplete());
+
+        Schedule expected = BEFORE
+                .apply(ScheduleEdit.create(new FeedingTime(2, 9, 15, 2, true, 0)))
+                .apply(ScheduleEdit.delete(new FeedingTime(4, 0, 0, 0, true, 0)))
+                .apply(ScheduleEdit.create(new FeedingTime(17, 23, 59, 25.5f, true, 0)));
+        assertTrue(expected.isSameAs(decoder.applyTo(BEFORE)));
+    }
+
+    @Test
+    public void fullReplyRoundTrips() throws IOException
+    {
+        ByteBuffer out = ByteBuffer.allocate(FrameCodec.MAX_SYNC_REPLY_SIZE);
+        FrameCodec.putSyncReply(out, -1, 9, StateDecoder.SLOT_COUNT);
+        for(int slot = 0;slot<StateDecoder.SLOT_COUNT;slot++)
+        {
+            FrameCodec.putSyncRecord(out, slot, slot, slot * 3, slot + 1);
+        }
+        assertEquals(FrameCodec.MAX_SYNC_REPLY_SIZE, out.position());
+        DeltaDecoder decoder = new DeltaDecoder();
+        assertEquals(StateDecoder.SLOT_COUNT, decoder.read(new ByteArrayInputStream(out.array())));
+        assertTrue(decoder.isComplete());
+        assertEquals(-1, decoder.getEpoch());
+        Schedule schedule = decoder.applyTo(BEFORE);
+        assertEquals(StateDecoder.SLOT_COUNT, schedule.size());
+        assertEquals(Schedule.pack(17, 51, 18), schedule.getRecord(17));
+    }
+
+    @Test
+    public void noChangesLeaveTheSchedule() throws IOException
+    {
+        ByteBuffer out = ByteBuffer.allocate(FrameCodec.SYNC_HEADER_SIZE);
+        FrameCodec.putSyncReply(out, 3, 5, 0);
+        DeltaDecoder decoder = new DeltaDecoder();
+        assertEquals(0, decoder.read(new ByteArrayInputStream(out.array())));
+        assertEquals(3, decoder.getEpoch());
+        assertEquals(5, decoder.getVersion());
+        assertSame(BEFORE, decoder.applyTo(BEFORE));
+    }
+
+    @Test
+    public void readStopsAtTheEndOfTheReply() throws IOException
+    {
+        byte[] reply = encodeReply(7, 1);
+        ByteArrayInputStream in = new ByteArrayInputStream(Arrays.copyOf(reply, reply.length + 2));
+        new DeltaDecoder().read(in);
+        assertEquals(2, in.available());
+    }
+
+    @Test
+    public void tooManySlotsAreRejected()
+    {
+        byte[] reply = encodeReply(7, 1);
+        reply[FrameCodec.SYNC_HEADER_SIZE - 1] = (byte)(StateDecoder.SLOT_COUNT + 1);
+        assertThrows(ProtocolException.class, () -> new DeltaDecoder().read(new ByteArrayInputStream(reply)));
+    }
+
+    @Test
+    public void otherRepliesAreRejected()
+    {
+        byte[] reply = encodeReply(7, 1);
+        reply[0] = 'u';
+        assertThrows(ProtocolException.class, () -> new DeltaDecoder().read(new ByteArrayInputStream(reply)));
+    }
+
+    @Test
+    public void truncatedReplyFails()
+    {
+        byte[] reply = encodeReply(7, 1);
+        // Cut off in the version, and in the last slot
+        assertThrows(EOFException.class, () -> new DeltaDecoder().read(new TrickleInputStream(Arrays.copyOf(reply, 7))));
+        assertThrows(EOFException.class, () -> new DeltaDecoder().read(new TrickleInputStream(Arrays.copyOf(reply, reply.length - 1))));
+    }
+}
@@ -0,0 +1,144 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class FrameCodecTest
+{
+    /**
+     * One frame of every kind, with arguments that use the full range of a byte.
+     */
+    private static ByteBuffer encodeAll()
+    {
+        ByteBuffer out = ByteBuffer.allocate(64);
+        FrameCodec.putUpdate(out);
+        FrameCodec.putCreate(out, 17, 23, 59, 255);
+        FrameCodec.putDelete(out, 5);
+        FrameCodec.putManual(out, 200);
+        FrameCodec.putSync(out, 0x7F000001, 0x80A1B2C3);
+        out.flip();
+        return out;
+    }
+
+    private static void assertAllDecoded(FrameDecoder decoder, ByteBuffer in) throws ProtocolException
+    {
+        assertTrue(decoder.decode(in));
+        assertEquals(FrameCodec.UPDATE, decoder.getCommand());
+
+        assertTrue(decoder.decode(in));
+        assertEquals(FrameCodec.CREATE, decoder.getCommand());
+        assertEquals(17, decoder.getSlot());
+        assertEquals(23, decoder.getHour());
+        assertEquals(59, decoder.getMinute());
+        assertEquals(255, decoder.getDeciSeconds());
+
+        assertTrue(decoder.decode(in));
+        assertEquals(FrameCodec.DELETE, decoder.getCommand());
+        assertEquals(5, decoder.getSlot());
+
+        assertTrue(decoder.decode(in));
+        assertEquals(FrameCodec.MANUAL, decoder.getCommand());
+        assertEquals(200, decoder.getDeciSeconds());
+
+        assertTrue(decoder.decode(in));
+        assertEquals(FrameCodec.SYNC, decoder.getCommand());
+        assertEquals(0x7F000001, decoder.getEpoch());
+        assertEquals(0x80A1B2C3, decoder.getVersion());
+
+        assertFalse(in.hasRemaining());
+        assertFalse(decoder.decode(in));
+    }
+
+    @Test
+    public void everyFrameRoundTrips() throws ProtocolException
+    {
+        assertAllDecoded(new FrameDecoder(), encodeAll());
+    }
+
+    @Test
+    public void framesSplitAcrossReadsRoundTrip() throws ProtocolException
+    {
+        byte[] commands = {FrameCodec.UPDATE, FrameCodec.CREATE, FrameCodec.DELETE, FrameCodec.MANUAL, FrameCodec.SYNC};
+        ByteBuffer encoded = encodeAll();
+        FrameDecoder decoder = new FrameDecoder();
+        int frames = 0;
+        int end = 0;
+        // Hand the decoder one byte at a time; a frame is only complete on its last byte
+        while(encoded.hasRemaining())
+        {
+            ByteBuffer in = ByteBuffer.wrap(new byte[]{encoded.get()});
+            if(decoder.decode(in))
+            {
+                assertEquals(commands[frames], decoder.getCommand());
+                end += FrameCodec.getFrameLength(decoder.getCommand());
+                assertEquals(end, encoded.position());
+                frames++;
+            }
+            assertFalse(in.hasRemaining());
+        }
+        assertEquals(commands.length, frames);
+        assertEquals(0x7F000001, decoder.getEpoch());
+        assertEquals(0x80A1B2C3, decoder.getVersion());
+    }
+
+    @Test
+    public void framesInUnevenChunksRoundTrip() throws ProtocolException
+    {
+        ByteBuffer encoded = encodeAll();
+        FrameDecoder decoder = new FrameDecoder();
+        // The first chunk ends in the middle of the create frame
+        ByteBuffer first = (ByteBuffer)encoded.duplicate().limit(3);
+        assertTrue(decoder.decode(first));
+        assertFalse(decoder.decode(first));
+        ByteBuffer rest = (ByteBuffer)encoded.duplicate().position(3);
+        assertTrue(decoder.decode(rest));
+        assertEquals(FrameCodec.CREATE, decoder.getCommand());
+        assertEquals(17, decoder.getSlot());
+        assertEquals(255, decoder.getDeciSeconds());
+    }
+
+    @Test
+    public void newFramesMatchTheirLength() throws ProtocolException
+    {
+        byte[][] frames = {
+                FrameCodec.newUpdateFrame(),
+                FrameCodec.newCreateFrame(1, 2, 3, 4),
+                FrameCodec.newDeleteFrame(1),
+                FrameCodec.newManualFrame(1),
+                FrameCodec.newSyncFrame(1, 2)
+        };
+        for(byte[] frame:frames)
+        {
+            assertEquals(FrameCodec.getFrameLength(frame[0]), frame.length);
+            assertTrue(frame.length <= FrameCodec.MAX_FRAME_SIZE);
+            FrameDecoder decoder = new FrameDecoder();
+            assertTrue(decoder.decode(ByteBuffer.wrap(frame)));
+            assertEquals(frame[0], decoder.getCommand());
+        }
+    }
+
+    @Test
+    public void replyLengths()
+    {
+        assertEquals(StateDecoder.STATE_SIZE, FrameCodec.getReplyLength(FrameCodec.UPDATE));
+        assertEquals(StateDecoder.STATE_SIZE, FrameCodec.getReplyLength(FrameCodec.CREATE));
+        assertEquals(StateDecoder.STATE_SIZE, FrameCodec.getReplyLength(FrameCodec.DELETE));
+        assertEquals(0, FrameCodec.getReplyLength(FrameCodec.MANUAL));
+        assertEquals(FrameCodec.MAX_SYNC_REPLY_SIZE, FrameCodec.getReplyLength(FrameCodec.SYNC));
+    }
+
+    @Test
+    public void unknownCommandIsRejected()
+    {
+        assertThrows(ProtocolException.class, () -> FrameCodec.getFrameLength('x'));
+        FrameDecoder decoder = new FrameDecoder();
+        assertThrows(ProtocolException.class, () -> decoder.decode(ByteBuffer.wrap(new byte[]{'x', 1, 2})));
+    }
+}
@@ -0,0 +1,123 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.data.FeedingTime;
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
+
+public class StateDecoderTest
+{
+    private static final Schedule SCHEDULE = Schedule.EMPTY
+            .apply(ScheduleEdit.create(new FeedingTime(0, 0, 0, 0.1f, true, 0)))
+            .apply(ScheduleEdit.create(new FeedingTime(7, 12, 30, 2.5f, true, 0)))
+            .apply(ScheduleEdit.create(new FeedingTime(17, 23, 59, 25.5f, true, 0)));
+
+    private static byte[] encode(Schedule schedule)
+    {
+        ByteBuffer out = ByteBuffer.allocate(StateDecoder.STATE_SIZE);
+        FrameCodec.putState(out, schedule);
+        assertFalse(out.hasRemaining());
+        return out.array();
+    }
+
+    @Test
+    public void stateRoundTripsThroughStream() throws IOException
+    {
+        StateDecoder decoder = new StateDecoder();
+        assertEquals(StateDecoder.SLOT_COUNT, decoder.read(new TrickleInputStream(encode(SCHEDULE))));
+        assertTrue(SCHEDULE.isSameAs(decoder.toSchedule()));
+        assertTrue(decoder.isUsed(7));
+        assertEquals(12, decoder.getHour(7));
+        assertEquals(30, decoder.getMinute(7));
+        assertEquals(25, decoder.getDeciSeconds(7));
+        assertFalse(decoder.isUsed(8));
+    }
+
+    @Test
+    public void stateRoundTripsThroughArray()
+    {
+        byte[] data = new byte[StateDecoder.STATE_SIZE + 4];
+        System.arraycopy(encode(SCHEDULE), 0, data, 2, StateDecoder.STATE_SIZE);
+        StateDecoder decoder = new StateDecoder();
+        assertEquals(StateDecoder.SLOT_COUNT, decoder.wrap(data, 2, data.length - 2));
+        assertTrue(SCHEDULE.isSameAs(decoder.toSchedule()));
+    }
+
+    @Test
+    public void stateRoundTripsInPieces()
+    {
+        byte[] state = encode(SCHEDULE);
+        // Two dumps back to back, handed over in pieces that do not line up with either
+        ByteBuffer in = ByteBuffer.allocate(state.length * 2).put(state).put(encode(Schedule.EMPTY));
+        in.flip();
+        StateDecoder decoder = new StateDecoder();
+        int dumps = 0;
+        while(in.hasRemaining())
+        {
+            ByteBuffer piece = (ByteBuffer)in.slice().limit(Math.min(5, in.remaining()));
+            boolean complete = decoder.decode(piece);
+            in.position(in.position() + piece.position());
+            if(complete)
+            {
+                assertTrue((dumps == 0 ? SCHEDULE : Schedule.EMPTY).isSameAs(decoder.toSchedule()));
+                assertEquals(StateDecoder.STATE_SIZE * (dumps + 1), in.position());
+                dumps++;
+            }
+            else
+            {
+                assertFalse(in.position() % StateDecoder.STATE_SIZE == 0);
+            }
+        }
+        assertEquals(2, dumps);
+    }
+
+    @Test
+    public void readStopsAtTheEndOfTheDump() throws IOException
+    {
+        byte[] data = new byte[StateDecoder.STATE_SIZE + 3];
+        System.arraycopy(encode(SCHEDULE), 0, data, 0, StateDecoder.STATE_SIZE);
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        new StateDecoder().read(in);
+        assertEquals(3, in.available());
+    }
+
+    @Test
+    public void shortDumpOnlyHoldsWholeSlots() throws IOException
+    {
+        byte[] state = encode(SCHEDULE);
+        StateDecoder decoder = new StateDecoder();
+        // The stream ends one byte into slot 8
+        byte[] cut = new byte[8 * StateDecoder.RECORD_SIZE + 1];
+        System.arraycopy(state, 0, cut, 0, cut.length);
+        assertEquals(8, decoder.read(new TrickleInputStream(cut)));
+        Schedule schedule = decoder.toSchedule();
+        assertTrue(schedule.isOccupied(0));
+        assertTrue(schedule.isOccupied(7));
+        assertFalse(schedule.isOccupied(17));
+
+        assertEquals(0, decoder.wrap(state, 0, 2));
+        assertTrue(decoder.toSchedule().isEmpty());
+    }
+
+    @Test
+    public void timesOutOfRangeAreUnused()
+    {
+        byte[] state = encode(SCHEDULE);
+        state[0] = 24;
+        state[7 * StateDecoder.RECORD_SIZE + 1] = 60;
+        StateDecoder decoder = new StateDecoder();
+        decoder.wrap(state, 0, state.length);
+        assertFalse(decoder.isUsed(0));
+        assertFalse(decoder.isUsed(7));
+        assertEquals(1, decoder.toSchedule().size());
+    }
+}
@@ -0,0 +1,20 @@
+package st.crosscheck.fishfeeder.protocol;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * Hands out its data at most one byte per read, the way a slow connection may.
+ */
+class TrickleInputStream extends ByteArrayInputStream
+{
+    TrickleInputStream(byte[] data)
+    {
+        super(data);
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len)
+    {
+        return super.read(b, off, Math.min(len, 1));
+    }
+}
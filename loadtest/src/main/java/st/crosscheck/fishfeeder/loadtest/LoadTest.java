@@ -0,0 +1,518 @@
+package st.crosscheck.fishfeeder.loadtest;
+
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import st.crosscheck.fishfeeder.data.FeedingTime;
+import st.crosscheck.fishfeeder.data.ScheduleEdit;
+import st.crosscheck.fishfeeder.metrics.ClientMetrics;
+import st.crosscheck.fishfeeder.metrics.LatencyHistogram;
+import st.crosscheck.fishfeeder.net.Deadline;
+import st.crosscheck.fishfeeder.net.FeederConnection;
+import st.crosscheck.fishfeeder.net.NioEngine;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+import st.crosscheck.fishfeeder.simulator.FeederSimulator;
+
+/**
+ * Sends commands to a feeder, or a simulated one, from a number of threads at a fixed rate,
+ * and reports the latency percentiles, the throughput and the errors.
+ * <p>
+ * Each thread sends its share of the rate on a fixed timetable, and the latency of a command
+ * is measured from when it should have been sent, not from when it was. A slow reply therefore
+ * shows up in the latency of the commands that had to wait for it, instead of hiding them.
+ * <p>
+ * Only the raw protocol is measured. The commands are sent over the same transports the client
+ * uses: a {@link FeederConnection} per thread that is kept between commands, a new blocking
+ * socket per command as the client falls back to for feeders that close the connection, or a
+ * {@link NioEngine}. They are not sent through the client itself: its command queue, refresh
+ * coalescing, journal and listeners live in the app and need Android, so their cost is not
+ * part of these numbers.
+ *
+ * @author Erik Berglund
+ */
+public class LoadTest
+{
+    /**
+     * The commands of the feeder protocol.
+     */
+    enum Command
+    {
+        UPDATE('u'), CREATE('c'), DELETE('d'), MANUAL('m');
+
+        private final char code;
+
+        Command(char code)
+        {
+            this.code = code;
+        }
+
+        byte[] createFrame(Random random)
+        {
+            int slot = random.nextInt(StateDecoder.SLOT_COUNT);
+            switch(this)
+            {
+                case CREATE:
+                    return ScheduleEdit.create(new FeedingTime(slot, random.nextInt(24), random.nextInt(60), (1 + random.nextInt(255)) / 10.0f, true)).toFrame();
+                case DELETE:
+                    return ScheduleEdit.delete(new FeedingTime(slot, 0, 0, 0, true)).toFrame();
+                case MANUAL:
+                    return FrameCodec.newManualFrame(3);
+                default:
+                    return FrameCodec.newUpdateFrame();
+            }
+        }
+
+        int getReplyLength()
+        {
+            return FrameCodec.getReplyLength(code);
+        }
+
+        static Command fromCode(char code)
+        {
+            for(Command command:values())
+            {
+                if(command.code == code)
+                {
+                    return command;
+                }
+            }
+            throw new IllegalArgumentException("Unknown command " + code);
+        }
+    }
+
+    /**
+     * Sends a frame and waits for the reply.
+     */
+    interface Transport
+    {
+        byte[] exchange(InetSocketAddress address, byte[] frame, int replyLength, int timeoutMillis) throws IOException;
+    }
+
+    /**
+     * A new blocking connection for every command, as the client uses when the feeder closes
+     * the connection after each reply.
+     */
+    static class BlockingTransport implements Transport
+    {
+        @Override
+        public byte[] exchange(InetSocketAddress address, byte[] frame, int replyLength, int timeoutMillis) throws IOException
+        {
+            try (Socket socket = new Socket())
+            {
+                socket.connect(address, timeoutMillis);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(timeoutMillis);
+                OutputStream out = socket.getOutputStream();
+                out.write(frame);
+                out.flush();
+                byte[] reply = new byte[replyLength];
+                InputStream in = socket.getInputStream();
+                int length = 0;
+                while(length < replyLength)
+                {
+                    int count = in.read(reply, length, replyLength - length);
+                    if(count < 0)
+                    {
+                        break;
+                    }
+                    length += count;
+                }
+                return length == replyLength ? reply : Arrays.copyOf(reply, length);
+            }
+        }
+    }
+
+    /**
+     * A connection per thread that is kept between commands, the way the client talks to a
+     * feeder that keeps connections open. The reply is read and checked, but not returned.
+     */
+    static class KeepAliveTransport implements Transport
+    {
+        private final List<FeederConnection> connections = new CopyOnWriteArrayList<>();
+        private final ThreadLocal<FeederConnection> connection = ThreadLocal.withInitial(() -> {
+            FeederConnection c = new FeederConnection(new ClientMetrics());
+            connections.add(c);
+            return c;
+        });
+        private final ThreadLocal<StateDecoder> decoder = ThreadLocal.withInitial(StateDecoder::new);
+
+        @Override
+        public byte[] exchange(InetSocketAddress address, byte[] frame, int replyLength, int timeoutMillis) throws IOException
+        {
+            FeederConnection c = connection.get();
+            Deadline deadline = Deadline.after(timeoutMillis);
+            try
+            {
+                c.open(address, deadline);
+                c.send(frame, deadline);
+                if(replyLength > 0)
+                {
+                    c.readState(decoder.get());
+                }
+                c.release();
+            }
+            catch (IOException e)
+            {
+                c.close();
+                throw e;
+            }
+            return new byte[replyLength];
+        }
+
+        void close() throws IOException
+        {
+            for(FeederConnection c:connections)
+            {
+                c.close();
+            }
+        }
+    }
+
+    // Options
+    private InetSocketAddress address;
+    private int concurrency = 4;
+    private double rate = 100;
+    private long durationMillis = 10000;
+    private long warmupMillis = 2000;
+    private int timeoutMillis = 3000;
+    private String transportName = "keepalive";
+    private final List<Command> commands = new ArrayList<>();
+    private String reportPath;
+    private long latencyMillis = 5;
+    private long jitterMillis = 5;
+    private double dropRate;
+
+    // Results
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<Command, LatencyHistogram> commandLatency = new EnumMap<>(Command.class);
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong shortReplies = new AtomicLong();
+
+    /**
+     * Run a load test and write the report.
+     * Options: --host H, --port N (without them a simulator is started in this process),
+     * --concurrency N, --rate PER_SECOND (0 for as fast as possible), --duration SECONDS,
+     * --warmup SECONDS, --timeout MS, --commands ucdm, --transport keepalive|blocking|nio,
+     * --report FILE, and for the simulator --latency MS, --jitter MS and --drop RATE.
+     * The simulator keeps connections open when the keepalive transport is used.
+     */
+    public static void main(String[] args) throws Exception
+    {
+        LoadTest test = new LoadTest();
+        String host = null;
+        int port = 0;
+        for(int x = 0;x<args.length;x++)
+        {
+            switch(args[x])
+            {
+                case "--host":
+                    host = args[++x];
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++x]);
+                    break;
+                case "--concurrency":
+                    test.concurrency = Integer.parseInt(args[++x]);
+                    break;
+                case "--rate":
+                    test.rate = Double.parseDouble(args[++x]);
+                    break;
+                case "--duration":
+                    test.durationMillis = (long)(Double.parseDouble(args[++x]) * 1000);
+                    break;
+                case "--warmup":
+                    test.warmupMillis = (long)(Double.parseDouble(args[++x]) * 1000);
+                    break;
+                case "--timeout":
+                    test.timeoutMillis = Integer.parseInt(args[++x]);
+                    break;
+                case "--commands":
+                    for(char code:args[++x].toCharArray())
+                    {
+                        test.commands.add(Command.fromCode(code));
+                    }
+                    break;
+                case "--transport":
+                    test.transportName = args[++x];
+                    if(!Arrays.asList("keepalive", "blocking", "nio").contains(test.transportName))
+                    {
+                        System.err.println("Unknown transport " + test.transportName);
+                        System.exit(1);
+                    }
+                    break;
+                case "--report":
+                    test.reportPath = args[++x];
+                    break;
+                case "--latency":
+                    test.latencyMillis = Long.parseLong(args[++x]);
+                    break;
+                case "--jitter":
+                    test.jitterMillis = Long.parseLong(args[++x]);
+                    break;
+                case "--drop":
+                    test.dropRate = Double.parseDouble(args[++x]);
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[x]);
+                    System.exit(1);
+            }
+        }
+        if(test.commands.isEmpty())
+        {
+            for(Command command:Command.values())
+            {
+                test.commands.add(command);
+            }
+        }
+        FeederSimulator simulator = null;
+        if(host == null)
+        {
+            simulator = new FeederSimulator(0);
+            simulator.setBeaconEnabled(false);
+            simulator.setLatencyMillis(test.latencyMillis);
+            simulator.setJitterMillis(test.jitterMillis);
+            simulator.setDropRate(test.dropRate);
+            simulator.setKeepAlive("keepalive".equals(test.transportName));
+            simulator.start();
+            host = "127.0.0.1";
+            port = simulator.getPort();
+        }
+        test.address = new InetSocketAddress(host, port);
+        try
+        {
+            test.run();
+        }
+        finally
+        {
+            if(simulator != null)
+            {
+                simulator.close();
+            }
+        }
+        test.printSummary(System.out);
+        if(test.reportPath != null)
+        {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(test.reportPath), StandardCharsets.UTF_8))
+            {
+                writer.write(test.toJson());
+            }
+        }
+        else
+        {
+            System.out.println(test.toJson());
+        }
+    }
+
+    private void run() throws IOException, InterruptedException
+    {
+        for(Command command:commands)
+        {
+            commandLatency.put(command, new LatencyHistogram());
+        }
+        final NioEngine engine = "nio".equals(transportName) ? new NioEngine() : null;
+        final KeepAliveTransport keepAlive = "keepalive".equals(transportName) ? new KeepAliveTransport() : null;
+        final Transport transport;
+        if(engine != null)
+        {
+            transport = (address, frame, replyLength, timeoutMillis) -> engine.exchange(address, frame, replyLength, timeoutMillis);
+        }
+        else if(keepAlive != null)
+        {
+            transport = keepAlive;
+        }
+        else
+        {
+            transport = new BlockingTransport();
+        }
+        long start = System.nanoTime();
+        final long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+        final long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        List<Thread> workers = new ArrayList<>();
+        for(int x = 0;x<concurrency;x++)
+        {
+            final int worker = x;
+            Thread thread = new Thread(() -> work(worker, transport, start, measureFrom, end), "LoadTest-" + x);
+            workers.add(thread);
+            thread.start();
+        }
+        for(Thread thread:workers)
+        {
+            thread.join();
+        }
+        if(engine != null)
+        {
+            engine.close();
+        }
+        if(keepAlive != null)
+        {
+            keepAlive.close();
+        }
+    }
+
+    /**
+     * Send commands on this worker's timetable until the end of the test.
+     */
+    private void work(int worker, Transport transport, long start, long measureFrom, long end)
+    {
+        Random random = new Random(worker);
+        // Each worker sends its share of the rate, starting a little apart from the others
+        long interval = rate > 0 ? (long)(TimeUnit.SECONDS.toNanos(1) * concurrency / rate) : 0;
+        long intended = start + interval * worker / concurrency;
+        int next = worker;
+        while(true)
+        {
+            long now = System.nanoTime();
+            if(interval > 0)
+            {
+                if(intended - now > 0)
+                {
+                    sleepNanos(intended - now);
+                }
+            }
+            else
+            {
+                intended = now;
+            }
+            if(intended - end >= 0)
+            {
+                break;
+            }
+            Command command = commands.get(next++ % commands.size());
+            // Commands sent during the warmup are not counted
+            boolean measured = intended - measureFrom >= 0;
+            send(transport, command, command.createFrame(random), measured);
+            if(measured)
+            {
+                long micros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended);
+                latency.record(micros);
+                commandLatency.get(command).record(micros);
+            }
+            intended += interval;
+        }
+    }
+
+    /**
+     * Send a command and wait for the reply.
+     * @param measured true to count the command if it fails.
+     */
+    private void send(Transport transport, Command command, byte[] frame, boolean measured)
+    {
+        AtomicLong failure = null;
+        try
+        {
+            byte[] reply = transport.exchange(address, frame, command.getReplyLength(), timeoutMillis);
+            if(reply.length < command.getReplyLength())
+            {
+                failure = shortReplies;
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            failure = timeouts;
+        }
+        catch (EOFException e)
+        {
+            // The NIO engine and a kept connection fail an exchange whose reply ends early
+            failure = shortReplies;
+        }
+        catch (IOException e)
+        {
+            // The NIO engine reports its own timeouts
+            failure = e.getMessage() != null && e.getMessage().startsWith("Timed out") ? timeouts : errors;
+        }
+        if(measured && failure != null)
+        {
+            failure.incrementAndGet();
+        }
+    }
+
+    private static void sleepNanos(long nanos)
+    {
+        try
+        {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void printSummary(PrintStream out)
+    {
+        out.println(String.format(Locale.ROOT, "%d commands in %.1f s, %.1f/s, %d errors, %d timeouts, %d short replies",
+                latency.getCount(), durationMillis / 1000.0, getThroughput(), errors.get(), timeouts.get(), shortReplies.get()));
+        out.println(String.format(Locale.ROOT, "latency ms: p50 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+                latency.getValueAtPercentile(50) / 1000.0, latency.getValueAtPercentile(99) / 1000.0,
+                latency.getValueAtPercentile(99.9) / 1000.0, latency.getMax() / 1000.0));
+    }
+
+    private double getThroughput()
+    {
+        return latency.getCount() * 1000.0 / durationMillis;
+    }
+
+    /**
+     * Write the results as JSON, latencies in microseconds.
+     */
+    private String toJson()
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"address\": \"").append(address.getHostString()).append(':').append(address.getPort()).append("\",\n");
+        json.append("  \"measures\": \"raw protocol\",\n");
+        json.append("  \"transport\": \"").append(transportName).append("\",\n");
+        json.append("  \"concurrency\": ").append(concurrency).append(",\n");
+        json.append("  \"targetRate\": ").append(rate).append(",\n");
+        json.append("  \"durationSeconds\": ").append(durationMillis / 1000.0).append(",\n");
+        json.append("  \"commands\": ").append(latency.getCount()).append(",\n");
+        json.append("  \"throughput\": ").append(String.format(Locale.ROOT, "%.2f", getThroughput())).append(",\n");
+        json.append("  \"errors\": ").append(errors.get()).append(",\n");
+        json.append("  \"timeouts\": ").append(timeouts.get()).append(",\n");
+        json.append("  \"shortReplies\": ").append(shortReplies.get()).append(",\n");
+        json.append("  \"latencyMicros\": ");
+        appendLatency(json, latency);
+        json.append(",\n  \"latencyMicrosByCommand\": {");
+        String separator = "\n";
+        for(Map.Entry<Command, LatencyHistogram> entry:commandLatency.entrySet())
+        {
+            json.append(separator).append("    \"").append(entry.getKey().name().toLowerCase(Locale.ROOT)).append("\": ");
+            appendLatency(json, entry.getValue());
+            separator = ",\n";
+        }
+        json.append("\n  }\n}\n");
+        return json.toString();
+    }
+
+    private static void appendLatency(StringBuilder json, LatencyHistogram histogram)
+    {
+        json.append("{\"count\": ").append(histogram.getCount())
+                .append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", histogram.getMean()))
+                .append(", \"p50\": ").append(histogram.getValueAtPercentile(50))
+                .append(", \"p99\": ").append(histogram.getValueAtPercentile(99))
+                .append(", \"p999\": ").append(histogram.getValueAtPercentile(99.9))
+                .append(", \"max\": ").append(histogram.getMax())
+                .append('}');
+    }
+}
@@ -0,0 +1,535 @@
+package st.crosscheck.fishfeeder.simulator;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.FrameDecoder;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+/**
+ * A stand-in for the feeder, for trying out the app and the client without the hardware.
+ * <p>
+ * It announces itself with the same multicast beacon as the feeder, and answers the same
+ * commands over TCP: 'u' (send the state), 'c' (create a feeding time), 'd' (delete a feeding
+ * time) and 'm' (manual feeding). Like the feeder, it replies to every command but 'm' with the
+ * state of all slots, and closes the connection after each command. In keep-alive mode it
+ * instead keeps serving commands on the connection until the client closes it, answering
+ * commands sent in one go in order.
+ * <p>
+ * It also numbers the versions of its state and answers 'v' with the slots changed since a
+ * version, announcing this with "sync=1" in its beacon. Like the feeder, it does not keep the
+ * versions across a restart, so it picks a new epoch each time it is created. The beacon also
+ * carries the epoch and the current version, and is sent as soon as the state changes. This can be turned off to behave like
+ * older firmware, which closes the connection on commands it does not know.
+ * <p>
+ * Each reply can be delayed by a fixed latency plus a random jitter, and a share of the
+ * connections can be dropped after the command has been carried out but before the reply is
+ * sent, as happens when the network fails at the wrong moment.
+ * <p>
+ * The simulator can be run within the same process as a client, or on its own from
+ * {@link #main(String[])}.
+ *
+ * @author Erik Berglund
+ */
+public class FeederSimulator implements Closeable
+{
+    // The multicast group and port the feeder announces itself on.
+    public static final String MULTICAST_ADDRESS = "226.1.1.1";
+    public static final int MULTICAST_PORT = 5050;
+    private static final long DEFAULT_BEACON_INTERVAL_MS = 1000;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, FeederSimulator.class.getSimpleName());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Random random = new Random();
+    // The raw state of the slots, as sent to the client. Guarded by itself.
+    private final byte[] state = new byte[StateDecoder.STATE_SIZE];
+    // The epoch of the versions, never 0.
+    private final int epoch;
+    // The version of the state, and the version in which each slot last changed. Guarded by state.
+    private int version = 1;
+    private final int[] slotVersions = new int[StateDecoder.SLOT_COUNT];
+    private final AtomicLong commandCount = new AtomicLong();
+    private final AtomicLong manualCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long latencyMillis;
+    private volatile long jitterMillis;
+    private volatile double dropRate;
+    private volatile long beaconIntervalMillis = DEFAULT_BEACON_INTERVAL_MS;
+    private volatile boolean beaconEnabled = true;
+    private volatile boolean syncEnabled = true;
+    private volatile boolean keepAlive;
+    private volatile boolean running;
+
+    /**
+     * Create a simulator with all slots unused.
+     * @param port the TCP port to accept commands on, 0 to pick a free one.
+     */
+    public FeederSimulator(int port) throws IOException
+    {
+        serverSocket = new ServerSocket(port);
+        int picked;
+        do
+        {
+            picked = random.nextInt();
+        }
+        while(picked == 0);
+        epoch = picked;
+        // Unused slots are stored the way Schedule.toRecords writes them
+        for(int offset = 0;offset<state.length;offset += StateDecoder.RECORD_SIZE)
+        {
+            state[offset] = (byte)0xFF;
+            state[offset + 1] = (byte)0xFF;
+        }
+    }
+
+    /**
+     * Start accepting commands and sending beacons.
+     */
+    public void start()
+    {
+        running = true;
+        executor.execute(this::accept);
+        if(beaconEnabled)
+        {
+            executor.execute(this::announce);
+        }
+    }
+
+    /**
+     * Get the TCP port the simulator accepts commands on.
+     */
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Set the fixed delay before each reply.
+     */
+    public void setLatencyMillis(long latencyMillis)
+    {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Set the largest random delay added to the latency of each reply.
+     */
+    public void setJitterMillis(long jitterMillis)
+    {
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Set the share of connections, between 0 and 1, that are closed without a reply.
+     */
+    public void setDropRate(double dropRate)
+    {
+        this.dropRate = dropRate;
+    }
+
+    public void setBeaconIntervalMillis(long beaconIntervalMillis)
+    {
+        this.beaconIntervalMillis = beaconIntervalMillis;
+    }
+
+    /**
+     * Choose whether to send beacons, e.g. to turn them off where multicast is not available.
+     * Must be called before {@link #start()}.
+     */
+    public void setBeaconEnabled(boolean beaconEnabled)
+    {
+        this.beaconEnabled = beaconEnabled;
+    }
+
+    /**
+     * Choose whether to answer 'v' and announce it in the beacon. Without it the simulator
+     * behaves like firmware that only sends the state in full.
+     * Must be called before {@link #start()}.
+     */
+    public void setSyncEnabled(boolean syncEnabled)
+    {
+        this.syncEnabled = syncEnabled;
+    }
+
+    /**
+     * Choose whether to keep the connection open for more commands after a reply, instead of
+     * closing it after each command like the feeder does.
+     */
+    public void setKeepAlive(boolean keepAlive)
+    {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Seed the random numbers used for jitter and dropped connections, to make a run repeatable.
+     */
+    public void setSeed(long seed)
+    {
+        random.setSeed(seed);
+    }
+
+    /**
+     * Get the schedule as it is currently stored in the slots.
+     */
+    public Schedule getSchedule()
+    {
+        synchronized (state)
+        {
+            return Schedule.fromRecords(state, 0, StateDecoder.SLOT_COUNT);
+        }
+    }
+
+    /**
+     * Replace the schedule stored in the slots.
+     */
+    public void setSchedule(Schedule schedule)
+    {
+        byte[] records = new byte[StateDecoder.STATE_SIZE];
+        schedule.toRecords(records, 0);
+        synchronized (state)
+        {
+            for(int slot = 0;slot<StateDecoder.SLOT_COUNT;slot++)
+            {
+                int offset = slot * StateDecoder.RECORD_SIZE;
+                setSlot(slot, records[offset] & 0xFF, records[offset + 1] & 0xFF, records[offset + 2] & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Get the number of commands received, including those whose reply was dropped.
+     */
+    public long getCommandCount()
+    {
+        return commandCount.get();
+    }
+
+    /**
+     * Get the number of manual feedings carried out.
+     */
+    public long getManualCount()
+    {
+        return manualCount.get();
+    }
+
+    /**
+     * Get the number of connections closed without a reply.
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount.get();
+    }
+
+    /**
+     * Stop accepting commands and sending beacons.
+     */
+    @Override
+    public void close()
+    {
+        running = false;
+        try
+        {
+            serverSocket.close();
+        }
+        catch (IOException e)
+        {
+            // Nothing more to do
+        }
+        executor.shutdownNow();
+    }
+
+    private void accept()
+    {
+        while(running)
+        {
+            try
+            {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                executor.execute(() -> serve(socket));
+            }
+            catch (IOException e)
+            {
+                if(running)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Carry out one command and close the connection, like the feeder does, or in keep-alive
+     * mode every command until the client closes the connection.
+     */
+    private void serve(Socket socket)
+    {
+        try (Socket s = socket)
+        {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            OutputStream out = s.getOutputStream();
+            do
+            {
+                byte[] reply = handle(in);
+                if(random.nextDouble() < dropRate)
+                {
+                    droppedCount.incrementAndGet();
+                    return;
+                }
+                delay();
+                if(reply != null)
+                {
+                    out.write(reply);
+                    out.flush();
+                }
+            }
+            while(keepAlive && running);
+        }
+        catch (EOFException | SocketException e)
+        {
+            // The client went away
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Read and carry out one command.
+     * @return the reply, or null if the command has none.
+     */
+    private byte[] handle(DataInputStream in) throws IOException
+    {
+        int command = in.readUnsignedByte();
+        if(command == FrameCodec.SYNC && !syncEnabled)
+        {
+            throw new EOFException("Sync is turned off.");
+        }
+        byte[] frame = new byte[FrameCodec.getFrameLength(command)];
+        frame[0] = (byte)command;
+        in.readFully(frame, 1, frame.length - 1);
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.decode(ByteBuffer.wrap(frame));
+        commandCount.incrementAndGet();
+        synchronized (state)
+        {
+            switch(decoder.getCommand())
+            {
+                case FrameCodec.CREATE:
+                    if(decoder.getSlot() < StateDecoder.SLOT_COUNT)
+                    {
+                        setSlot(decoder.getSlot(), decoder.getHour(), decoder.getMinute(), decoder.getDeciSeconds());
+                    }
+                    break;
+                case FrameCodec.DELETE:
+                    if(decoder.getSlot() < StateDecoder.SLOT_COUNT)
+                    {
+                        setSlot(decoder.getSlot(), 0xFF, 0xFF, 0);
+                    }
+                    break;
+                case FrameCodec.MANUAL:
+                    manualCount.incrementAndGet();
+                    return null;
+                case FrameCodec.SYNC:
+                    return createDelta(decoder.getEpoch(), decoder.getVersion());
+                default:
+                    break;
+            }
+            return state.clone();
+        }
+    }
+
+    /**
+     * Create the reply to 'v': the slots changed since a version, or all slots if the version
+     * is 0, unknown or from another epoch.
+     */
+    private byte[] createDelta(int sinceEpoch, int since)
+    {
+        boolean all = sinceEpoch != epoch || since <= 0 || since > version;
+        int count = 0;
+        for(int slot = 0;slot<StateDecoder.SLOT_COUNT;slot++)
+        {
+            if(all || slotVersions[slot] > since)
+            {
+                count++;
+            }
+        }
+        ByteBuffer reply = ByteBuffer.allocate(FrameCodec.SYNC_HEADER_SIZE + count * FrameCodec.SYNC_RECORD_SIZE);
+        FrameCodec.putSyncReply(reply, epoch, version, count);
+        for(int slot = 0;slot<StateDecoder.SLOT_COUNT;slot++)
+        {
+            if(all || slotVersions[slot] > since)
+            {
+                int offset = slot * StateDecoder.RECORD_SIZE;
+                FrameCodec.putSyncRecord(reply, slot, state[offset] & 0xFF, state[offset + 1] & 0xFF, state[offset + 2] & 0xFF);
+            }
+        }
+        return reply.array();
+    }
+
+    /**
+     * Store a slot, starting a new version of the state if it changed. Only call while holding
+     * the state lock.
+     */
+    private void setSlot(int slot, int hour, int minute, int deciSeconds)
+    {
+        int offset = slot * StateDecoder.RECORD_SIZE;
+        if(state[offset] == (byte)hour && state[offset + 1] == (byte)minute && state[offset + 2] == (byte)deciSeconds)
+        {
+            return;
+        }
+        slotVersions[slot] = ++version;
+        // Wake the beacon, to announce the new version
+        state.notifyAll();
+        state[slot * StateDecoder.RECORD_SIZE] = (byte)hour;
+        state[slot * StateDecoder.RECORD_SIZE + 1] = (byte)minute;
+        state[slot * StateDecoder.RECORD_SIZE + 2] = (byte)deciSeconds;
+    }
+
+    private void delay()
+    {
+        long jitter = jitterMillis;
+        long delay = latencyMillis + (jitter > 0 ? (long)(random.nextDouble() * jitter) : 0);
+        if(delay > 0)
+        {
+            try
+            {
+                Thread.sleep(delay);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Send the beacon with the TCP port until the simulator is closed, at once when the state
+     * changes and otherwise at the beacon interval.
+     */
+    private void announce()
+    {
+        try (MulticastSocket socket = new MulticastSocket())
+        {
+            socket.setTimeToLive(1);
+            InetAddress group = InetAddress.getByName(MULTICAST_ADDRESS);
+            while(running)
+            {
+                int announced;
+                String beacon = Integer.toString(getPort());
+                synchronized (state)
+                {
+                    announced = version;
+                }
+                if(syncEnabled)
+                {
+                    beacon += " sync=1 epoch=" + Integer.toUnsignedString(epoch) + " ver=" + announced;
+                }
+                byte[] payload = beacon.getBytes(StandardCharsets.US_ASCII);
+                socket.send(new DatagramPacket(payload, payload.length, group, MULTICAST_PORT));
+                synchronized (state)
+                {
+                    if(version == announced)
+                    {
+                        state.wait(beaconIntervalMillis);
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            if(running)
+            {
+                e.printStackTrace();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            // Closed
+        }
+    }
+
+    /**
+     * Run a simulator until the process is stopped.
+     * Options: --port N, --latency MS, --jitter MS, --drop RATE, --seed N, --keep-alive, --no-beacon, --no-sync.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        int port = 0;
+        long latency = 0;
+        long jitter = 0;
+        double drop = 0;
+        Long seed = null;
+        boolean beacon = true;
+        boolean sync = true;
+        boolean keepAlive = false;
+        for(int x = 0;x<args.length;x++)
+        {
+            switch(args[x])
+            {
+                case "--port":
+                    port = Integer.parseInt(args[++x]);
+                    break;
+                case "--latency":
+                    latency = Long.parseLong(args[++x]);
+                    break;
+                case "--jitter":
+                    jitter = Long.parseLong(args[++x]);
+                    break;
+                case "--drop":
+                    drop = Double.parseDouble(args[++x]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(args[++x]);
+                    break;
+                case "--keep-alive":
+                    keepAlive = true;
+                    break;
+                case "--no-beacon":
+                    beacon = false;
+                    break;
+                case "--no-sync":
+                    sync = false;
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[x]);
+                    System.exit(1);
+            }
+        }
+        FeederSimulator simulator = new FeederSimulator(port);
+        simulator.setLatencyMillis(latency);
+        simulator.setJitterMillis(jitter);
+        simulator.setDropRate(drop);
+        simulator.setBeaconEnabled(beacon);
+        simulator.setSyncEnabled(sync);
+        simulator.setKeepAlive(keepAlive);
+        if(seed != null)
+        {
+            simulator.setSeed(seed);
+        }
+        simulator.start();
+        System.out.println("Simulating a feeder on port " + simulator.getPort());
+        Thread.currentThread().join();
+    }
+}
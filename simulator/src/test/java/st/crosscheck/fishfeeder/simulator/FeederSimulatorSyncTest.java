@@ -0,0 +1,95 @@
+package st.crosscheck.fishfeeder.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.protocol.DeltaDecoder;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+public class FeederSimulatorSyncTest
+{
+    private FeederSimulator simulator;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        simulator = new FeederSimulator(0);
+        simulator.setBeaconEnabled(false);
+        simulator.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        simulator.close();
+    }
+
+    /**
+     * Send a command over a connection of its own, as the simulator closes it after each one.
+     */
+    private DeltaDecoder send(byte[] frame, DeltaDecoder decoder) throws IOException
+    {
+        try (Socket socket = new Socket())
+        {
+            socket.connect(new InetSocketAddress("127.0.0.1", simulator.getPort()), 5000);
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(frame);
+            if(decoder != null)
+            {
+                decoder.read(socket.getInputStream());
+            }
+            else
+            {
+                new StateDecoder().read(socket.getInputStream());
+            }
+        }
+        return decoder;
+    }
+
+    @Test
+    public void onlyChangesWithinTheEpochAreSent() throws IOException
+    {
+        DeltaDecoder decoder = send(FrameCodec.newSyncFrame(0, 0), new DeltaDecoder());
+        assertEquals(StateDecoder.SLOT_COUNT, decoder.getCount());
+        int epoch = decoder.getEpoch();
+        int version = decoder.getVersion();
+        assertNotEquals(0, epoch);
+
+        send(FrameCodec.newCreateFrame(3, 7, 45, 10), null);
+        send(FrameCodec.newSyncFrame(epoch, version), decoder);
+        assertEquals(epoch, decoder.getEpoch());
+        assertEquals(1, decoder.getCount());
+        int current = decoder.getVersion();
+
+        send(FrameCodec.newSyncFrame(epoch, current), decoder);
+        assertEquals(0, decoder.getCount());
+
+        // The same version from another epoch, as after the feeder has restarted
+        send(FrameCodec.newSyncFrame(epoch + 1, current), decoder);
+        assertEquals(StateDecoder.SLOT_COUNT, decoder.getCount());
+        // A version from the future
+        send(FrameCodec.newSyncFrame(epoch, current + 1), decoder);
+        assertEquals(StateDecoder.SLOT_COUNT, decoder.getCount());
+    }
+
+    @Test
+    public void eachSimulatorHasItsOwnEpoch() throws IOException
+    {
+        int epoch = send(FrameCodec.newSyncFrame(0, 0), new DeltaDecoder()).getEpoch();
+        // A restart, which the simulator stands in for by being created anew
+        simulator.close();
+        simulator = new FeederSimulator(0);
+        simulator.setBeaconEnabled(false);
+        simulator.start();
+        assertNotEquals(epoch, send(FrameCodec.newSyncFrame(0, 0), new DeltaDecoder()).getEpoch());
+    }
+}
@@ -0,0 +1,176 @@
+package st.crosscheck.fishfeeder.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.data.Schedule;
+import st.crosscheck.fishfeeder.metrics.ClientMetrics;
+import st.crosscheck.fishfeeder.net.Deadline;
+import st.crosscheck.fishfeeder.net.FeederConnection;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+/**
+ * Talks to the simulator through the connection the client uses, with and without keep-alive,
+ * and checks the latency, jitter and dropped replies it can be set up with.
+ */
+public class FeederSimulatorTest
+{
+    private FeederSimulator simulator;
+    private InetSocketAddress address;
+    private final FeederConnection connection = new FeederConnection(new ClientMetrics());
+
+    @Before
+    public void setUp() throws IOException
+    {
+        simulator = new FeederSimulator(0);
+        simulator.setBeaconEnabled(false);
+        simulator.setSeed(1);
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(), simulator.getPort());
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        connection.close();
+        simulator.close();
+    }
+
+    /**
+     * Send a command that is answered with the state, and read the state.
+     * @return true if the connection was reused.
+     */
+    private boolean exchange(byte[] frame) throws IOException
+    {
+        Deadline deadline = Deadline.after(5000);
+        boolean reused = connection.open(address, deadline);
+        connection.send(frame, deadline);
+        connection.readState(new StateDecoder());
+        connection.release();
+        return reused;
+    }
+
+    private List<Schedule> pipeline(byte[]... frames) throws IOException
+    {
+        Deadline deadline = Deadline.after(5000);
+        connection.open(address, deadline);
+        return connection.pipeline(Arrays.asList(frames), deadline);
+    }
+
+    private static boolean hasSlot(Schedule schedule, int slot, int hour)
+    {
+        return schedule.isOccupied(slot) && Schedule.unpackHour(schedule.getRecord(slot)) == hour;
+    }
+
+    @Test
+    public void keepAliveConnectionIsReused() throws IOException
+    {
+        simulator.setKeepAlive(true);
+        simulator.start();
+        assertFalse(exchange(FrameCodec.newUpdateFrame()));
+        assertTrue(exchange(FrameCodec.newCreateFrame(2, 8, 30, 10)));
+        assertTrue(exchange(FrameCodec.newUpdateFrame()));
+        assertFalse(connection.isPeerClosingConnection());
+        assertTrue(connection.isKeepAlive());
+        assertEquals(3, simulator.getCommandCount());
+    }
+
+    @Test
+    public void closingFeederIsNoticedAndConnectionsAreNotKept() throws Exception
+    {
+        simulator.start();
+        assertFalse(exchange(FrameCodec.newUpdateFrame()));
+        // Let the close reach the client before the connection is checked
+        Thread.sleep(100);
+        assertFalse(exchange(FrameCodec.newUpdateFrame()));
+        assertTrue(connection.isPeerClosingConnection());
+        assertFalse(connection.isKeepAlive());
+        assertFalse(exchange(FrameCodec.newUpdateFrame()));
+        assertEquals(3, simulator.getCommandCount());
+    }
+
+    @Test
+    public void pipelinedCommandsAreEachAnsweredOnAKeptConnection() throws IOException
+    {
+        simulator.setKeepAlive(true);
+        simulator.start();
+        List<Schedule> replies = pipeline(FrameCodec.newCreateFrame(0, 6, 0, 10),
+                FrameCodec.newCreateFrame(1, 7, 0, 10),
+                FrameCodec.newDeleteFrame(0));
+        assertEquals(3, replies.size());
+        assertTrue(hasSlot(replies.get(0), 0, 6));
+        assertFalse(replies.get(0).isOccupied(1));
+        assertTrue(hasSlot(replies.get(1), 0, 6));
+        assertTrue(hasSlot(replies.get(1), 1, 7));
+        assertFalse(replies.get(2).isOccupied(0));
+        assertTrue(hasSlot(replies.get(2), 1, 7));
+        assertFalse(connection.isPeerClosingConnection());
+    }
+
+    @Test
+    public void pipelineStopsAfterTheOnlyReplyOfAClosingFeeder() throws IOException
+    {
+        simulator.start();
+        List<Schedule> replies = pipeline(FrameCodec.newCreateFrame(0, 6, 0, 10),
+                FrameCodec.newCreateFrame(1, 7, 0, 10));
+        assertEquals(1, replies.size());
+        assertTrue(hasSlot(replies.get(0), 0, 6));
+        assertTrue(connection.isPeerClosingConnection());
+        // The second command was never carried out, so it must be sent again
+        assertFalse(simulator.getSchedule().isOccupied(1));
+    }
+
+    @Test
+    public void repliesAreDelayedByLatencyAndJitter() throws IOException
+    {
+        simulator.setLatencyMillis(100);
+        simulator.setJitterMillis(100);
+        simulator.start();
+        for(int x = 0;x<5;x++)
+        {
+            long start = System.nanoTime();
+            exchange(FrameCodec.newUpdateFrame());
+            long elapsedMillis = (System.nanoTime() - start) / 1000000;
+            assertTrue("Reply after " + elapsedMillis + " ms", elapsedMillis >= 100);
+            // The upper bound leaves plenty of room for a slow machine
+            assertTrue("Reply after " + elapsedMillis + " ms", elapsedMillis < 200 + 2000);
+        }
+    }
+
+    @Test
+    public void droppedReplyClosesTheConnectionAfterTheCommand() throws IOException
+    {
+        simulator.setDropRate(1);
+        simulator.start();
+        assertThrows(EOFException.class, () -> exchange(FrameCodec.newCreateFrame(4, 9, 15, 10)));
+        assertEquals(1, simulator.getDroppedCount());
+        // The command was carried out, only the reply was lost
+        assertTrue(hasSlot(simulator.getSchedule(), 4, 9));
+    }
+
+    @Test
+    public void noReplyIsDroppedWithoutADropRate() throws IOException
+    {
+        simulator.setKeepAlive(true);
+        simulator.start();
+        for(int x = 0;x<20;x++)
+        {
+            exchange(FrameCodec.newUpdateFrame());
+        }
+        assertEquals(0, simulator.getDroppedCount());
+        assertEquals(20, simulator.getCommandCount());
+    }
+}
@@ -0,0 +1,160 @@
+package st.crosscheck.fishfeeder.simulator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import st.crosscheck.fishfeeder.net.NioEngine;
+import st.crosscheck.fishfeeder.protocol.FrameCodec;
+import st.crosscheck.fishfeeder.protocol.StateDecoder;
+
+/**
+ * Drives many simulated feeders through a single {@link NioEngine}.
+ */
+public class NioEngineThroughputTest
+{
+    private static final int FEEDERS = 32;
+    private static final int EXCHANGES_PER_FEEDER = 25;
+    // Each simulated feeder takes this long to reply, so serving the feeders one at a time
+    // would take at least FEEDERS * EXCHANGES_PER_FEEDER * LATENCY_MS.
+    private static final long LATENCY_MS = 5;
+    // The number of exchanges timed one after the other, to estimate a serial run.
+    private static final int SERIAL_EXCHANGES = 20;
+    private static final long TIMEOUT_MS = 30000;
+
+    private final List<FeederSimulator> simulators = new ArrayList<>();
+    private final List<InetSocketAddress> addresses = new ArrayList<>();
+    private NioEngine engine;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        for(int x = 0;x<FEEDERS;x++)
+        {
+            FeederSimulator simulator = new FeederSimulator(0);
+            simulator.setBeaconEnabled(false);
+            simulator.setLatencyMillis(LATENCY_MS);
+            simulator.start();
+            simulators.add(simulator);
+            addresses.add(new InetSocketAddress("127.0.0.1", simulator.getPort()));
+        }
+        engine = new NioEngine();
+    }
+
+    @After
+    public void tearDown()
+    {
+        engine.close();
+        for(FeederSimulator simulator:simulators)
+        {
+            simulator.close();
+        }
+    }
+
+    /**
+     * Time exchanges with a feeder of its own one after the other, the way they would go
+     * without the engine serving feeders side by side.
+     * @return the time of one exchange, in nanoseconds.
+     */
+    private long measureSerialExchange() throws IOException
+    {
+        FeederSimulator simulator = new FeederSimulator(0);
+        simulators.add(simulator);
+        simulator.setBeaconEnabled(false);
+        simulator.setLatencyMillis(LATENCY_MS);
+        simulator.start();
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", simulator.getPort());
+        // The first exchange also warms up the engine
+        engine.exchange(address, FrameCodec.newUpdateFrame(), StateDecoder.STATE_SIZE, TIMEOUT_MS);
+        long start = System.nanoTime();
+        for(int x = 0;x<SERIAL_EXCHANGES;x++)
+        {
+            engine.exchange(address, FrameCodec.newUpdateFrame(), StateDecoder.STATE_SIZE, TIMEOUT_MS);
+        }
+        return (System.nanoTime() - start) / SERIAL_EXCHANGES;
+    }
+
+    @Test
+    public void servesManyFeedersConcurrently() throws InterruptedException, IOException
+    {
+        int total = FEEDERS * EXCHANGES_PER_FEEDER;
+        long serialMillis = TimeUnit.NANOSECONDS.toMillis(measureSerialExchange() * total);
+        CountDownLatch done = new CountDownLatch(total);
+        AtomicInteger completed = new AtomicInteger();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        long start = System.nanoTime();
+        for(int x = 0;x<EXCHANGES_PER_FEEDER;x++)
+        {
+            for(int feeder = 0;feeder<FEEDERS;feeder++)
+            {
+                // Store a feeding time in a different slot each round, so the state shows every exchange arrived
+                byte[] frame = FrameCodec.newCreateFrame(x % StateDecoder.SLOT_COUNT, feeder % 24, x, 10);
+                engine.submit(addresses.get(feeder), frame, FrameCodec.getReplyLength(frame[0]), TIMEOUT_MS, new NioEngine.Callback()
+                {
+                    @Override
+                    public void completed(byte[] reply)
+                    {
+                        if(reply.length == StateDecoder.STATE_SIZE)
+                        {
+                            completed.incrementAndGet();
+                        }
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void failed(IOException e)
+                    {
+                        error.compareAndSet(null, e);
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue("Exchanges did not complete in time", done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertNull(error.get());
+        assertEquals(total, completed.get());
+        // Exchanges with one feeder run in order, but the feeders are served side by side, which
+        // ideally makes the run FEEDERS times faster than a serial one
+        assertTrue("Took " + elapsedMillis + " ms, serial would be " + serialMillis + " ms", elapsedMillis < serialMillis / 2);
+        for(int feeder = 0;feeder<FEEDERS;feeder++)
+        {
+            assertEquals(Math.min(EXCHANGES_PER_FEEDER, StateDecoder.SLOT_COUNT), simulators.get(feeder).getSchedule().size());
+            assertEquals(EXCHANGES_PER_FEEDER, simulators.get(feeder).getCommandCount());
+        }
+    }
+
+    @Test
+    public void replyCutShortFailsTheExchange()
+    {
+        FeederSimulator simulator = simulators.get(0);
+        simulator.setDropRate(1);
+        try
+        {
+            engine.exchange(addresses.get(0), FrameCodec.newUpdateFrame(), StateDecoder.STATE_SIZE, TIMEOUT_MS);
+        }
+        catch (EOFException e)
+        {
+            return;
+        }
+        catch (IOException e)
+        {
+            throw new AssertionError("Expected end of stream", e);
+        }
+        throw new AssertionError("A reply that was never sent was accepted");
+    }
+}